@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import onl.area51.httpd.action.ContextListener;
+import onl.area51.httpd.action.Request;
+import onl.area51.httpd.util.StreamingEntity;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.ProtocolException;
+import org.apache.http.UnsupportedHttpVersionException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncExchange;
+import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+/**
+ * Adapts a blocking {@link HttpRequestHandler} to the non-blocking engine.
+ * <p>
+ * The request is received by the I/O threads and then handed to a worker so that the handler, and any actions within it, can
+ * block without stalling other connections.
+ *
+ * @author peter
+ */
+class AsyncRequestHandler
+        implements HttpAsyncRequestHandler<HttpRequest>
+{
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private final HttpRequestHandler handler;
+    private final Dispatcher dispatcher;
+
+    AsyncRequestHandler( HttpRequestHandler handler, Dispatcher dispatcher )
+    {
+        this.handler = handler;
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public HttpAsyncRequestConsumer<HttpRequest> processRequest( HttpRequest request, HttpContext context )
+    {
+        Object maxSize = context.getAttribute( Request.MAX_BODY_ATTRIBUTE );
+        return maxSize instanceof Long ? new LimitedRequestConsumer( (Long) maxSize ) : new BasicAsyncRequestConsumer();
+    }
+
+    @Override
+    public void handle( HttpRequest request, HttpAsyncExchange exchange, HttpContext context )
+    {
+        dispatcher.dispatch( () -> {
+            HttpResponse response = exchange.getResponse();
+            try {
+                begin( request, context );
+                try {
+                    handler.handle( request, response, context );
+                }
+                finally {
+                    // A streamed body is generated after the headers have been sent so must run within the scope
+                    HttpEntity entity = response.getEntity();
+                    if( entity instanceof StreamingEntity ) {
+                        ((StreamingEntity) entity).whenComplete( r -> end( response, context ) );
+                    }
+                    else {
+                        end( response, context );
+                    }
+                }
+            }
+            catch( HttpException |
+                   IOException |
+                   RuntimeException ex ) {
+                handleException( ex, response );
+            }
+
+            try {
+                for( HttpResponseInterceptor itcp: dispatcher.getWorkerInterceptors() ) {
+                    itcp.process( response, context );
+                }
+            }
+            catch( HttpException |
+                   IOException |
+                   RuntimeException ex ) {
+                handleException( ex, response );
+            }
+
+            HttpEntity entity = response.getEntity();
+            if( !exchange.isCompleted() ) {
+                exchange.submitResponse( new ResponseProducer( response ) );
+
+                // A streamed body is generated here, on the worker, once the headers have been sent
+                if( entity instanceof StreamingEntity ) {
+                    ((StreamingEntity) entity).stream();
+                }
+            }
+            else if( entity instanceof StreamingEntity ) {
+                complete( (StreamingEntity) entity );
+            }
+        }, () -> serviceUnavailable( exchange ) );
+    }
+
+    /**
+     * Respond with 503 when the request has been shed as every worker is busy
+     */
+    private void serviceUnavailable( HttpAsyncExchange exchange )
+    {
+        if( !exchange.isCompleted() ) {
+            HttpResponse response = exchange.getResponse();
+            response.setStatusCode( HttpStatus.SC_SERVICE_UNAVAILABLE );
+            response.setHeader( "Retry-After", String.valueOf( dispatcher.getRetryAfter() ) );
+            response.setEntity( new StringEntity( "Service Unavailable", ContentType.TEXT_PLAIN ) );
+            exchange.submitResponse( new ResponseProducer( response ) );
+        }
+    }
+
+    /**
+     * Run the {@link ContextListener}'s on the worker thread as they may bind state to the current thread, e.g. CDI's
+     * request scope.
+     */
+    private void begin( HttpRequest request, HttpContext context )
+            throws HttpException,
+                   IOException
+    {
+        for( ContextListener cl: dispatcher.getContextListeners() ) {
+            if( context.getAttribute( "request.unscoped" ) == null ) {
+                cl.begin( request, context );
+            }
+        }
+    }
+
+    private void end( HttpResponse response, HttpContext context )
+            throws HttpException,
+                   IOException
+    {
+        for( ContextListener cl: dispatcher.getContextListeners() ) {
+            if( context.getAttribute( "request.unscoped" ) == null ) {
+                cl.end( response, context );
+            }
+        }
+    }
+
+    /**
+     * End the scope of a streamed body that will never be sent
+     */
+    private static void complete( StreamingEntity entity )
+    {
+        try {
+            entity.complete();
+        }
+        catch( IOException ex ) {
+            LOG.log( Level.WARNING, "Failed to end request", ex );
+        }
+    }
+
+    /**
+     * Mirrors {@link org.apache.http.protocol.HttpService} so both engines respond the same way
+     */
+    private static void handleException( Exception ex, HttpResponse response )
+    {
+        if( ex instanceof MethodNotSupportedException ) {
+            response.setStatusCode( HttpStatus.SC_NOT_IMPLEMENTED );
+        }
+        else if( ex instanceof UnsupportedHttpVersionException ) {
+            response.setStatusCode( HttpStatus.SC_HTTP_VERSION_NOT_SUPPORTED );
+        }
+        else if( ex instanceof ProtocolException ) {
+            response.setStatusCode( HttpStatus.SC_BAD_REQUEST );
+        }
+        else {
+            response.setStatusCode( HttpStatus.SC_INTERNAL_SERVER_ERROR );
+        }
+
+        String message = ex.getMessage();
+        response.setEntity( new StringEntity( message == null ? ex.toString() : message, ContentType.TEXT_PLAIN ) );
+    }
+}
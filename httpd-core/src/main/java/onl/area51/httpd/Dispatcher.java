@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import onl.area51.httpd.action.ContextListener;
+import org.apache.http.HttpResponseInterceptor;
+
+/**
+ * Hands requests received by the non-blocking engine to the worker executor, keeping track of how many are in flight and how
+ * many have been shed because the executor was saturated.
+ *
+ * @author peter
+ */
+class Dispatcher
+{
+
+    private final ExecutorService executor;
+    private final List<ContextListener> contextListeners;
+    private final List<HttpResponseInterceptor> workerInterceptors;
+    private final int retryAfter;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong shed = new AtomicLong();
+
+    Dispatcher( ExecutorService executor, List<ContextListener> contextListeners, List<HttpResponseInterceptor> workerInterceptors,
+                int retryAfter )
+    {
+        this.executor = executor;
+        this.contextListeners = contextListeners;
+        this.workerInterceptors = workerInterceptors;
+        this.retryAfter = retryAfter;
+    }
+
+    List<ContextListener> getContextListeners()
+    {
+        return contextListeners;
+    }
+
+    /**
+     * Response interceptors to run on the worker before the response is submitted, as the non-blocking engine runs it's
+     * own interceptors on an I/O thread
+     *
+     * @return
+     */
+    List<HttpResponseInterceptor> getWorkerInterceptors()
+    {
+        return workerInterceptors;
+    }
+
+    /**
+     * The value of the Retry-After header sent with a shed request
+     *
+     * @return seconds
+     */
+    int getRetryAfter()
+    {
+        return retryAfter;
+    }
+
+    /**
+     * Dispatch a task to a worker
+     *
+     * @param task    the task
+     * @param onShed run instead of the task if the executor is saturated
+     */
+    void dispatch( Runnable task, Runnable onShed )
+    {
+        Job job = new Job( task, onShed );
+        try {
+            executor.execute( job );
+        }
+        catch( RejectedExecutionException ex ) {
+            job.shed();
+        }
+    }
+
+    int getActiveCount()
+    {
+        return active.get();
+    }
+
+    long getShedCount()
+    {
+        return shed.get();
+    }
+
+    void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * The {@link RejectedExecutionHandler} implementing a {@link ShedPolicy} for an executor fed by a Dispatcher
+     *
+     * @param policy
+     *
+     * @return
+     */
+    static RejectedExecutionHandler rejectionHandler( ShedPolicy policy )
+    {
+        switch( policy ) {
+            case DROP_OLDEST:
+                return ( r, e ) -> {
+                    Runnable oldest = e.isShutdown() ? null : e.getQueue().poll();
+                    if( oldest == null ) {
+                        shed( r );
+                    }
+                    else {
+                        shed( oldest );
+                        e.execute( r );
+                    }
+                };
+
+            case BLOCK:
+                return ( r, e ) -> {
+                    try {
+                        if( e.isShutdown() ) {
+                            shed( r );
+                        }
+                        else {
+                            e.getQueue().put( r );
+                        }
+                    }
+                    catch( InterruptedException ex ) {
+                        Thread.currentThread().interrupt();
+                        shed( r );
+                    }
+                };
+
+            case REJECT:
+            default:
+                return ( r, e ) -> shed( r );
+        }
+    }
+
+    private static void shed( Runnable r )
+    {
+        if( r instanceof Job ) {
+            ((Job) r).shed();
+        }
+        else {
+            throw new RejectedExecutionException();
+        }
+    }
+
+    /**
+     * A request waiting for, or running on, a worker
+     */
+    private class Job
+            implements Runnable
+    {
+
+        private final Runnable task;
+        private final Runnable onShed;
+
+        Job( Runnable task, Runnable onShed )
+        {
+            this.task = task;
+            this.onShed = onShed;
+        }
+
+        @Override
+        public void run()
+        {
+            active.incrementAndGet();
+            try {
+                task.run();
+            }
+            finally {
+                active.decrementAndGet();
+            }
+        }
+
+        void shed()
+        {
+            shed.incrementAndGet();
+            onShed.run();
+        }
+    }
+}
@@ -16,7 +16,9 @@
 package onl.area51.httpd;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
@@ -25,9 +27,9 @@ import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.http.HttpStatus;
 import org.apache.http.protocol.HttpRequestHandler;
 import onl.area51.httpd.action.Action;
+import onl.area51.httpd.action.ActionChain;
 import onl.area51.httpd.action.Actions;
 import onl.area51.httpd.action.HttpBiFunction;
 import onl.area51.httpd.action.HttpFunction;
@@ -35,8 +37,11 @@ import onl.area51.httpd.action.HttpPredicate;
 import onl.area51.httpd.action.HttpSupplier;
 import onl.area51.httpd.action.Request;
 import onl.area51.httpd.filter.RequestPredicate;
+import org.apache.http.ContentTooLongException;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HTTP;
 
 /**
  * Build's a {@link HttpRequestHandler} from one or more {@link HttpAction}'s associated with a method
@@ -106,6 +111,16 @@ public interface HttpRequestHandlerBuilder
 
     HttpRequestHandlerBuilder linkMethod( String method, String substitute );
 
+    /**
+     * Serve responses from a {@link ResponseCache}. Only responses the actions mark as cacheable, e.g. with
+     * {@link Request#maxAge(java.time.Duration)}, are stored.
+     *
+     * @param cache
+     *
+     * @return this instance
+     */
+    HttpRequestHandlerBuilder cache( ResponseCache cache );
+
     HttpRequestHandler build();
 
     static interface ChainBuilder
@@ -666,6 +681,7 @@ public interface HttpRequestHandlerBuilder
             private Level level;
             private RequestPredicate requestPredicate;
             private Predicate<Request> predicate;
+            private ResponseCache cache;
 
             @Override
             public HttpRequestHandlerBuilder unscoped()
@@ -688,15 +704,14 @@ public interface HttpRequestHandlerBuilder
                 HttpRequestHandlerBuilder b = this;
                 ChainBuilder c = new ChainBuilder()
                 {
-                    private Action action;
+                    private final List<Action> steps = new ArrayList<>();
                     private RequestPredicate requestPredicate;
                     private Predicate<Request> predicate;
 
                     @Override
                     public ChainBuilder add( Action action )
                     {
-                        Objects.requireNonNull( action );
-                        this.action = this.action == null ? action : this.action.andThen( action );
+                        steps.add( Objects.requireNonNull( action ) );
                         return this;
                     }
 
@@ -717,8 +732,11 @@ public interface HttpRequestHandlerBuilder
                     @Override
                     public HttpRequestHandlerBuilder end()
                     {
-                        Objects.requireNonNull( action, "No action defined for " + method );
+                        if( steps.isEmpty() ) {
+                            throw new NullPointerException( "No action defined for " + method );
+                        }
 
+                        Action action = ActionChain.of( steps );
                         actions.merge( method.toUpperCase( Locale.ROOT ), action.filterRequest( requestPredicate ).filter( predicate ), Action::andThen );
                         return b;
                     }
@@ -754,6 +772,13 @@ public interface HttpRequestHandlerBuilder
                 return this;
             }
 
+            @Override
+            public HttpRequestHandlerBuilder cache( ResponseCache cache )
+            {
+                this.cache = cache;
+                return this;
+            }
+
             @Override
             public HttpRequestHandler build()
             {
@@ -774,28 +799,43 @@ public interface HttpRequestHandlerBuilder
                     actions.put( "HEAD", actions.get( "GET" ) );
                 }
 
-                Action router = Action.filterRequest(
-                        r -> actions.getOrDefault(
-                                r.getHttpRequest().getRequestLine().getMethod().toUpperCase( Locale.ROOT ),
-                                r1 -> Actions.sendError( r1, HttpStatus.SC_METHOD_NOT_ALLOWED, "Method not allowed" )
-                        ).apply( r ), requestPredicate )
+                Action router = Action.filterRequest( new MethodTable( actions ), requestPredicate )
                         .filter( predicate )
                         // unscoped then set attribute before the action
                         .composeIf( unscoped, () -> r -> r.setAttribute( "request.unscoped", true ) )
                         // Wrap with the logger
                         .wrapif( logger != null && level != null, a -> new LogAction( logger, level, a ) );
 
-                return ( req, resp, ctx ) -> {
+                HttpRequestHandler handler = ( req, resp, ctx ) -> {
                     Request request = Request.create( req, resp, ctx );
+                    boolean tooLong = false;
                     try {
                         router.apply( request );
                     }
+                    catch( ContentTooLongException |
+                           RuntimeException ex ) {
+                        // The request body was larger than allowed, the exception may have been wrapped by a parser
+                        if( !(ex instanceof ContentTooLongException || ex.getCause() instanceof ContentTooLongException) ) {
+                            throw ex;
+                        }
+                        // Discard any partial response
+                        tooLong = true;
+                        resp.setHeader( HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE );
+                        Actions.sendError( request, HttpStatus.SC_REQUEST_TOO_LONG, (ex instanceof ContentTooLongException ? ex : ex.getCause()).getMessage() );
+                    }
                     finally {
                         if( request.isResponsePresent() ) {
-                            resp.setEntity( request.getResponse().getEntity() );
+                            if( tooLong ) {
+                                request.getResponse().discard();
+                            }
+                            else {
+                                resp.setEntity( request.getResponse().getEntity() );
+                            }
                         }
                     }
                 };
+
+                return cache == null ? handler : cache.wrap( handler );
             }
         };
     }
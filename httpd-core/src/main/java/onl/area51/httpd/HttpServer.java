@@ -30,4 +30,29 @@ public interface HttpServer
 
     void stop();
 
+    /**
+     * The number of requests currently running on worker threads.
+     * <p>
+     * This is only tracked by the non-blocking engine, where with {@link HttpServerBuilder#virtualThreads()} it is the
+     * number of virtual threads in flight. The blocking engine always returns 0.
+     *
+     * @return number of active workers
+     */
+    default int getActiveWorkers()
+    {
+        return 0;
+    }
+
+    /**
+     * The number of requests answered with 503 Service Unavailable because every worker was busy and the queue was full.
+     *
+     * @return number of shed requests
+     *
+     * @see HttpServerBuilder#setWorkerPool(int, int, onl.area51.httpd.ShedPolicy)
+     */
+    default long getShedCount()
+    {
+        return 0L;
+    }
+
 }
@@ -17,26 +17,44 @@ package onl.area51.httpd;
 
 import onl.area51.httpd.action.ActionRegistry;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLContext;
 import onl.area51.httpd.action.ContextListener;
+import onl.area51.httpd.action.Request;
+import onl.area51.httpd.util.ResponseCompression;
+import onl.area51.httpd.util.StreamingEntity;
 import org.apache.http.ConnectionClosedException;
 import org.apache.http.ConnectionReuseStrategy;
 import org.apache.http.ExceptionLogger;
 import org.apache.http.HttpConnectionFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponseFactory;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.SocketConfig;
 import org.apache.http.impl.DefaultBHttpServerConnection;
 import org.apache.http.impl.bootstrap.SSLServerSetupHandler;
 import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.ListenerEndpoint;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
 import org.apache.http.protocol.HttpExpectationVerifier;
 import org.apache.http.protocol.HttpProcessor;
 import org.apache.http.protocol.HttpRequestHandler;
@@ -67,6 +85,45 @@ public interface HttpServerBuilder
 
     HttpServerBuilder addInterceptorLast( HttpRequestInterceptor itcp );
 
+    /**
+     * Compress responses on the fly using the default settings
+     *
+     * @return
+     */
+    default HttpServerBuilder compress()
+    {
+        return compress( ResponseCompression.builder().build() );
+    }
+
+    /**
+     * Compress responses on the fly for clients that accept it.
+     * <p>
+     * This runs before the response's headers are finalised. With the non-blocking engine it runs on the worker before the
+     * response is handed to the I/O threads so they never compress.
+     *
+     * @param compression
+     *
+     * @return
+     */
+    HttpServerBuilder compress( ResponseCompression compression );
+
+    /**
+     * Limit the size of request bodies.
+     * <p>
+     * With the non-blocking engine a body is received into memory before the handler runs, so once it exceeds this the
+     * rest is discarded rather than buffered. With either engine reading the body with {@link Request#getBodyStream()}
+     * or {@link Request#getForm()} then fails with 413 Request Entity Too Large.
+     *
+     * @param maxSize maximum body size in bytes
+     *
+     * @return
+     */
+    default HttpServerBuilder maxRequestBody( long maxSize )
+    {
+        Long max = maxSize;
+        return addInterceptorFirst( (HttpRequestInterceptor) ( r, c ) -> c.setAttribute( Request.MAX_BODY_ATTRIBUTE, max ) );
+    }
+
     HttpServerBuilder setServerInfo( String serverInfo );
 
     HttpServerBuilder setConnectionReuseStrategy( ConnectionReuseStrategy connStrategy );
@@ -77,6 +134,10 @@ public interface HttpServerBuilder
 
     /**
      * Register a new handler
+     * <p>
+     * The pattern may be an exact path, "prefix*", "*suffix" or "*" as with {@link org.apache.http.protocol.UriHttpRequestHandlerMapper}.
+     * A path segment may also be a parameter like {@code /users/{id}/orders/{oid}}, it's value available from
+     * {@link onl.area51.httpd.action.Request#getPathParam(java.lang.String)}.
      *
      * @param pattern
      * @param handler
@@ -124,6 +185,111 @@ public interface HttpServerBuilder
 
     HttpServerBuilder shutdown( long gracePeriod, TimeUnit gracePeriodUnit );
 
+    /**
+     * Use the non-blocking engine instead of the classic blocking one.
+     * <p>
+     * The blocking engine dedicates a thread to every open connection, including idle keep-alive ones. The non-blocking
+     * engine services all connections from a small number of I/O threads and only hands a request to a worker thread once it
+     * has been received, so existing {@link HttpRequestHandler}'s and actions run unchanged.
+     * <p>
+     * {@link #setConnectionFactory(org.apache.http.HttpConnectionFactory) }, {@link #setSslSetupHandler(org.apache.http.impl.bootstrap.SSLServerSetupHandler)
+     * } and {@link #setServerSocketFactory(javax.net.ServerSocketFactory) } only apply to the blocking engine.
+     *
+     * @param ioThreadCount number of I/O threads, 0 for one per available processor
+     *
+     * @return this instance
+     */
+    HttpServerBuilder nonBlocking( int ioThreadCount );
+
+    /**
+     * Use the non-blocking engine with one I/O thread per available processor
+     *
+     * @return this instance
+     *
+     * @see #nonBlocking(int)
+     */
+    default HttpServerBuilder nonBlocking()
+    {
+        return nonBlocking( 0 );
+    }
+
+    /**
+     * The executor the non-blocking engine runs request handlers on. If not set then a cached thread pool is used which is
+     * shutdown with the server.
+     *
+     * @param workerExecutor
+     *
+     * @return this instance
+     */
+    HttpServerBuilder setWorkerExecutor( ExecutorService workerExecutor );
+
+    /**
+     * Run each request on it's own virtual thread so actions that block on slow backends no longer limit concurrency to the
+     * size of a thread pool.
+     * <p>
+     * As the blocking engine creates it's own connection threads this selects the non-blocking engine if it has not been
+     * already. On runtimes without virtual threads (before Java 21) a cached pool of platform threads is used instead.
+     *
+     * @return this instance
+     *
+     * @see HttpServer#getActiveWorkers()
+     */
+    HttpServerBuilder virtualThreads();
+
+    /**
+     * Run requests on a bounded pool of worker threads so overload degrades predictably instead of spawning ever more
+     * threads.
+     * <p>
+     * Requests wait in a bounded queue while every worker is busy. Once that is full the {@link ShedPolicy} decides what
+     * happens, with each shed request counted by {@link HttpServer#getShedCount()}.
+     * <p>
+     * As the blocking engine creates it's own connection threads this selects the non-blocking engine if it has not been
+     * already. It replaces {@link #virtualThreads()}.
+     *
+     * @param threads   number of worker threads
+     * @param queueSize maximum number of requests waiting for a worker, 0 for none
+     * @param policy    what to do when the queue is full
+     *
+     * @return this instance
+     */
+    HttpServerBuilder setWorkerPool( int threads, int queueSize, ShedPolicy policy );
+
+    /**
+     * Run requests on a bounded pool of worker threads, rejecting requests once the queue is full.
+     *
+     * @param threads   number of worker threads
+     * @param queueSize maximum number of requests waiting for a worker, 0 for none
+     *
+     * @return this instance
+     *
+     * @see #setWorkerPool(int, int, onl.area51.httpd.ShedPolicy)
+     */
+    default HttpServerBuilder setWorkerPool( int threads, int queueSize )
+    {
+        return setWorkerPool( threads, queueSize, ShedPolicy.REJECT );
+    }
+
+    /**
+     * The Retry-After header, in seconds, sent when a request is shed. Defaults to 1.
+     *
+     * @param retryAfter
+     *
+     * @return this instance
+     */
+    HttpServerBuilder setRetryAfter( int retryAfter );
+
+    /**
+     * Add a {@link ContextListener} which is notified at the start and end of each request.
+     * <p>
+     * With the blocking engine this is implemented with interceptors. With the non-blocking engine the listener is called on
+     * the worker thread handling the request, so listeners that bind state to the current thread still work.
+     *
+     * @param cl
+     *
+     * @return this instance
+     */
+    HttpServerBuilder addContextListener( ContextListener cl );
+
     /**
      * Notify a consumer of this builder.
      * <p>
@@ -185,16 +351,8 @@ public interface HttpServerBuilder
             @Override
             public ActionRegistry addContextListener( ContextListener cl )
             {
-                return addRequestInterceptorFirst( ( r, c ) -> {
-                    if( c.getAttribute( "request.unscoped" ) == null ) {
-                        cl.begin( r, c );
-                    }
-                } )
-                        .addResponseInterceptorLast( ( r, c ) -> {
-                            if( c.getAttribute( "request.unscoped" ) == null ) {
-                                cl.end( r, c );
-                            }
-                        } );
+                b.addContextListener( cl );
+                return this;
             }
 
         } );
@@ -208,9 +366,127 @@ public interface HttpServerBuilder
         return new HttpServerBuilder()
         {
             private final ServerBootstrap sb = ServerBootstrap.bootstrap();
+            private final org.apache.http.impl.nio.bootstrap.ServerBootstrap nsb = org.apache.http.impl.nio.bootstrap.ServerBootstrap.bootstrap();
             private long gracePeriod = 5;
             private TimeUnit gracePeriodUnit = TimeUnit.MINUTES;
             private HttpRequestHandlerBuilder globalHandler;
+            // The non-blocking engine needs it's handlers adapting so keep them until build()
+            private boolean nonBlocking;
+            private int ioThreadCount;
+            private ExecutorService workerExecutor;
+            private boolean virtualThreads;
+            private int poolThreads;
+            private int poolQueueSize;
+            private ShedPolicy shedPolicy;
+            private int retryAfter = 1;
+            private SocketConfig socketConfig = SocketConfig.DEFAULT;
+            private HttpRequestHandlerMapper handlerMapper;
+            private final Map<String, HttpRequestHandler> handlers = new LinkedHashMap<>();
+            private final List<ContextListener> contextListeners = new ArrayList<>();
+            private final List<HttpResponseInterceptor> workerInterceptors = new ArrayList<>();
+
+            @Override
+            public HttpServerBuilder nonBlocking( int ioThreadCount )
+            {
+                if( ioThreadCount < 0 ) {
+                    throw new IllegalArgumentException( "Invalid ioThreadCount" );
+                }
+                this.nonBlocking = true;
+                this.ioThreadCount = ioThreadCount;
+                return this;
+            }
+
+            @Override
+            public HttpServerBuilder setWorkerExecutor( ExecutorService workerExecutor )
+            {
+                this.workerExecutor = workerExecutor;
+                return this;
+            }
+
+            @Override
+            public HttpServerBuilder virtualThreads()
+            {
+                if( !nonBlocking ) {
+                    nonBlocking( 0 );
+                }
+                virtualThreads = true;
+                shedPolicy = null;
+                return this;
+            }
+
+            @Override
+            public HttpServerBuilder setWorkerPool( int threads, int queueSize, ShedPolicy policy )
+            {
+                if( threads < 1 || queueSize < 0 || policy == null ) {
+                    throw new IllegalArgumentException( "Invalid worker pool" );
+                }
+                if( !nonBlocking ) {
+                    nonBlocking( 0 );
+                }
+                poolThreads = threads;
+                poolQueueSize = queueSize;
+                shedPolicy = policy;
+                virtualThreads = false;
+                return this;
+            }
+
+            @Override
+            public HttpServerBuilder setRetryAfter( int retryAfter )
+            {
+                if( retryAfter < 0 ) {
+                    throw new IllegalArgumentException( "Invalid retryAfter" );
+                }
+                this.retryAfter = retryAfter;
+                return this;
+            }
+
+            @Override
+            public HttpServerBuilder compress( ResponseCompression compression )
+            {
+                sb.addInterceptorFirst( compression );
+                workerInterceptors.add( compression );
+                return this;
+            }
+
+            @Override
+            public HttpServerBuilder addContextListener( ContextListener cl )
+            {
+                sb.addInterceptorFirst( (HttpRequestInterceptor) ( r, c ) -> {
+                    if( c.getAttribute( "request.unscoped" ) == null ) {
+                        cl.begin( r, c );
+                    }
+                } );
+                sb.addInterceptorLast( (HttpResponseInterceptor) ( r, c ) -> {
+                    if( c.getAttribute( "request.unscoped" ) == null ) {
+                        // A streamed body is generated after the interceptors have run so must run within the scope
+                        HttpEntity entity = r.getEntity();
+                        if( entity instanceof StreamingEntity && canHaveBody( r, c ) ) {
+                            ((StreamingEntity) entity).whenComplete( req -> cl.end( r, c ) );
+                        }
+                        else {
+                            cl.end( r, c );
+                        }
+                    }
+                } );
+                contextListeners.add( cl );
+                return this;
+            }
+
+            /**
+             * Mirrors HttpService as the entity is never written when the response cannot have a body
+             */
+            private boolean canHaveBody( HttpResponse response, HttpContext context )
+            {
+                HttpRequest request = HttpCoreContext.adapt( context ).getRequest();
+                if( request != null && "HEAD".equalsIgnoreCase( request.getRequestLine().getMethod() ) ) {
+                    return false;
+                }
+                int status = response.getStatusLine().getStatusCode();
+                return status >= HttpStatus.SC_OK
+                       && status != HttpStatus.SC_NO_CONTENT
+                       && status != HttpStatus.SC_NOT_MODIFIED
+                       && status != HttpStatus.SC_RESET_CONTENT;
+            }
 
             @Override
             public HttpServerBuilder shutdown( long gracePeriod, TimeUnit gracePeriodUnit )
@@ -227,6 +503,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder setListenerPort( int listenerPort )
             {
                 sb.setListenerPort( listenerPort );
+                nsb.setListenerPort( listenerPort );
                 return this;
             }
 
@@ -234,6 +511,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder setLocalAddress( InetAddress localAddress )
             {
                 sb.setLocalAddress( localAddress );
+                nsb.setLocalAddress( localAddress );
                 return this;
             }
 
@@ -241,6 +519,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder setSocketConfig( SocketConfig socketConfig )
             {
                 sb.setSocketConfig( socketConfig );
+                this.socketConfig = socketConfig == null ? SocketConfig.DEFAULT : socketConfig;
                 return this;
             }
 
@@ -248,6 +527,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder setConnectionConfig( ConnectionConfig connectionConfig )
             {
                 sb.setConnectionConfig( connectionConfig );
+                nsb.setConnectionConfig( connectionConfig );
                 return this;
             }
 
@@ -255,6 +535,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder setHttpProcessor( HttpProcessor httpProcessor )
             {
                 sb.setHttpProcessor( httpProcessor );
+                nsb.setHttpProcessor( httpProcessor );
                 return this;
             }
 
@@ -262,6 +543,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder addInterceptorFirst( HttpResponseInterceptor itcp )
             {
                 sb.addInterceptorFirst( itcp );
+                nsb.addInterceptorFirst( itcp );
                 return this;
             }
 
@@ -269,6 +551,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder addInterceptorLast( HttpResponseInterceptor itcp )
             {
                 sb.addInterceptorLast( itcp );
+                nsb.addInterceptorLast( itcp );
                 return this;
             }
 
@@ -276,6 +559,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder addInterceptorFirst( HttpRequestInterceptor itcp )
             {
                 sb.addInterceptorFirst( itcp );
+                nsb.addInterceptorFirst( itcp );
                 return this;
             }
 
@@ -283,6 +567,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder addInterceptorLast( HttpRequestInterceptor itcp )
             {
                 sb.addInterceptorLast( itcp );
+                nsb.addInterceptorLast( itcp );
                 return this;
             }
 
@@ -290,6 +575,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder setServerInfo( String serverInfo )
             {
                 sb.setServerInfo( serverInfo );
+                nsb.setServerInfo( serverInfo );
                 return this;
             }
 
@@ -297,6 +583,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder setConnectionReuseStrategy( ConnectionReuseStrategy connStrategy )
             {
                 sb.setConnectionReuseStrategy( connStrategy );
+                nsb.setConnectionReuseStrategy( connStrategy );
                 return this;
             }
 
@@ -304,6 +591,7 @@ public interface HttpServerBuilder
             public HttpServerBuilder setResponseFactory( HttpResponseFactory responseFactory )
             {
                 sb.setResponseFactory( responseFactory );
+                nsb.setResponseFactory( responseFactory );
                 return this;
             }
 
@@ -311,13 +599,14 @@ public interface HttpServerBuilder
             public HttpServerBuilder setHandlerMapper( HttpRequestHandlerMapper handlerMapper )
             {
                 sb.setHandlerMapper( handlerMapper );
+                this.handlerMapper = handlerMapper;
                 return this;
             }
 
             @Override
             public HttpServerBuilder registerHandler( String pattern, HttpRequestHandler handler )
             {
-                sb.registerHandler( pattern, handler );
+                handlers.put( pattern, handler );
                 return this;
             }
 
@@ -325,6 +614,10 @@ public interface HttpServerBuilder
             public HttpServerBuilder setExpectationVerifier( HttpExpectationVerifier expectationVerifier )
             {
                 sb.setExpectationVerifier( expectationVerifier );
+                nsb.setExpectationVerifier( expectationVerifier == null ? null : ( exchange, context ) -> {
+                    expectationVerifier.verify( exchange.getRequest(), exchange.getResponse(), context );
+                    exchange.submitResponse();
+                } );
                 return this;
             }
 
@@ -354,17 +647,20 @@ public interface HttpServerBuilder
             public HttpServerBuilder setSslContext( SSLContext sslContext )
             {
                 sb.setSslContext( sslContext );
+                nsb.setSslContext( sslContext );
                 return this;
             }
 
             @Override
             public HttpServerBuilder setExceptionLogger( ExceptionLogger exceptionLogger, boolean filter )
             {
-                sb.setExceptionLogger( filter ? ex -> {
+                ExceptionLogger logger = filter ? ex -> {
                     if( !(ex instanceof SocketTimeoutException) && !(ex instanceof ConnectionClosedException) && !(ex instanceof SocketException) ) {
                         exceptionLogger.log( ex );
                     }
-                } : exceptionLogger );
+                } : exceptionLogger;
+                sb.setExceptionLogger( logger );
+                nsb.setExceptionLogger( logger );
                 return this;
             }
 
@@ -381,7 +677,16 @@ public interface HttpServerBuilder
             public HttpServer build()
             {
                 if( globalHandler != null ) {
-                    sb.registerHandler( "/*", globalHandler.build() );
+                    registerHandler( "/*", globalHandler.build() );
+                }
+
+                if( nonBlocking ) {
+                    return buildNonBlocking();
+                }
+
+                if( handlerMapper == null ) {
+                    Router router = new Router( handlers );
+                    sb.setHandlerMapper( r -> router );
                 }
 
                 org.apache.http.impl.bootstrap.HttpServer server = sb.create();
@@ -402,6 +707,85 @@ public interface HttpServerBuilder
                 };
             }
 
+            private HttpServer buildNonBlocking()
+            {
+                ExecutorService executor = workerExecutor != null ? workerExecutor
+                                           : shedPolicy != null ? Workers.boundedPool( poolThreads, poolQueueSize, Dispatcher.rejectionHandler( shedPolicy ) )
+                                             : virtualThreads ? Workers.virtualThreads()
+                                               : Workers.cachedPool();
+                Dispatcher dispatcher = new Dispatcher( executor, contextListeners, workerInterceptors, retryAfter );
+
+                if( handlerMapper != null ) {
+                    Map<HttpRequestHandler, AsyncRequestHandler> adapters = new ConcurrentHashMap<>();
+                    nsb.setHandlerMapper( r -> {
+                        HttpRequestHandler h = handlerMapper.lookup( r );
+                        return h == null ? null : adapters.computeIfAbsent( h, k -> new AsyncRequestHandler( k, dispatcher ) );
+                    } );
+                }
+                else {
+                    nsb.registerHandler( "*", new AsyncRequestHandler( new Router( handlers ), dispatcher ) );
+                }
+
+                IOReactorConfig.Builder ioReactorConfig = IOReactorConfig.custom()
+                        .setSoTimeout( socketConfig.getSoTimeout() )
+                        .setSoReuseAddress( socketConfig.isSoReuseAddress() )
+                        .setSoLinger( socketConfig.getSoLinger() )
+                        .setSoKeepAlive( socketConfig.isSoKeepAlive() )
+                        .setTcpNoDelay( socketConfig.isTcpNoDelay() )
+                        .setSndBufSize( socketConfig.getSndBufSize() )
+                        .setRcvBufSize( socketConfig.getRcvBufSize() )
+                        .setBacklogSize( socketConfig.getBacklogSize() );
+                if( ioThreadCount > 0 ) {
+                    ioReactorConfig.setIoThreadCount( ioThreadCount );
+                }
+                nsb.setIOReactorConfig( ioReactorConfig.build() );
+
+                org.apache.http.impl.nio.bootstrap.HttpServer server = nsb.create();
+                return new HttpServer()
+                {
+                    @Override
+                    public void start()
+                            throws IOException
+                    {
+                        server.start();
+
+                        // The reactor binds asynchronously so wait for it like the blocking engine
+                        ListenerEndpoint endpoint = server.getEndpoint();
+                        try {
+                            endpoint.waitFor();
+                        }
+                        catch( InterruptedException ex ) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                        if( endpoint.getException() != null ) {
+                            throw endpoint.getException();
+                        }
+                    }
+
+                    @Override
+                    public void stop()
+                    {
+                        server.shutdown( gracePeriod, gracePeriodUnit );
+                        if( workerExecutor == null ) {
+                            dispatcher.shutdown();
+                        }
+                    }
+
+                    @Override
+                    public int getActiveWorkers()
+                    {
+                        return dispatcher.getActiveCount();
+                    }
+
+                    @Override
+                    public long getShedCount()
+                    {
+                        return dispatcher.getShedCount();
+                    }
+                };
+            }
+
         };
     }
 }
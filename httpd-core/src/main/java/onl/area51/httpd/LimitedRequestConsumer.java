@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import onl.area51.httpd.util.LimitedInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.ContentBufferEntity;
+import org.apache.http.nio.protocol.AbstractAsyncRequestConsumer;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SimpleInputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * As {@link org.apache.http.nio.protocol.BasicAsyncRequestConsumer} but stops buffering a body once it is larger than
+ * {@link HttpServerBuilder#maxRequestBody(long)}. The rest of the body is discarded and reading the request's entity
+ * fails with {@link org.apache.http.ContentTooLongException}.
+ *
+ * @author peter
+ */
+class LimitedRequestConsumer
+        extends AbstractAsyncRequestConsumer<HttpRequest>
+{
+
+    private final long maxSize;
+    private volatile HttpRequest request;
+    private volatile SimpleInputBuffer buf;
+    private ByteBuffer discard;
+    private long received;
+
+    LimitedRequestConsumer( long maxSize )
+    {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    protected void onRequestReceived( HttpRequest request )
+            throws IOException
+    {
+        this.request = request;
+    }
+
+    @Override
+    protected void onEntityEnclosed( HttpEntity entity, ContentType contentType )
+            throws IOException
+    {
+        long len = entity.getContentLength();
+        if( len > maxSize ) {
+            tooLong( entity );
+        }
+        else {
+            buf = new SimpleInputBuffer( len < 0 ? 4096 : (int) len, new HeapByteBufferAllocator() );
+            ((HttpEntityEnclosingRequest) request).setEntity( new ContentBufferEntity( entity, buf ) );
+        }
+    }
+
+    /**
+     * Replace the entity with one that fails when read and discard the content
+     */
+    private void tooLong( HttpEntity entity )
+    {
+        buf = null;
+        discard = ByteBuffer.allocate( 4096 );
+        ((HttpEntityEnclosingRequest) request).setEntity( new HttpEntityWrapper( entity )
+        {
+            @Override
+            public boolean isRepeatable()
+            {
+                return false;
+            }
+
+            @Override
+            public boolean isStreaming()
+            {
+                return false;
+            }
+
+            @Override
+            public InputStream getContent()
+                    throws IOException
+            {
+                throw LimitedInputStream.tooLong( maxSize );
+            }
+
+            @Override
+            public void writeTo( OutputStream outstream )
+                    throws IOException
+            {
+                throw LimitedInputStream.tooLong( maxSize );
+            }
+        } );
+    }
+
+    @Override
+    protected void onContentReceived( ContentDecoder decoder, IOControl ioctrl )
+            throws IOException
+    {
+        if( buf != null ) {
+            received += buf.consumeContent( decoder );
+            if( received > maxSize ) {
+                tooLong( ((HttpEntityEnclosingRequest) request).getEntity() );
+            }
+        }
+        else {
+            discard.clear();
+            while( decoder.read( discard ) > 0 ) {
+                discard.clear();
+            }
+        }
+    }
+
+    @Override
+    protected HttpRequest buildResult( HttpContext context )
+    {
+        return request;
+    }
+
+    @Override
+    protected void releaseResources()
+    {
+        request = null;
+        buf = null;
+        discard = null;
+    }
+}
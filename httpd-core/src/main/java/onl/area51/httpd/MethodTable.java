@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import onl.area51.httpd.action.Action;
+import onl.area51.httpd.action.Actions;
+import onl.area51.httpd.action.Request;
+import org.apache.http.HttpException;
+import org.apache.http.HttpStatus;
+
+/**
+ * Dispatches a request to the action for it's method.
+ * <p>
+ * The table is frozen when {@link HttpRequestHandlerBuilder#build()} is called. The standard methods each have a fixed slot
+ * so the common case is a switch on the method name with no allocation. Extension methods use a map, and only a method not
+ * already in upper case pays for converting it.
+ *
+ * @author peter
+ */
+class MethodTable
+        implements Action
+{
+
+    private static final int GET = 0;
+    private static final int HEAD = 1;
+    private static final int POST = 2;
+    private static final int PUT = 3;
+    private static final int DELETE = 4;
+    private static final int OPTIONS = 5;
+    private static final int TRACE = 6;
+    private static final int PATCH = 7;
+    private static final int CONNECT = 8;
+    private static final int SLOTS = 9;
+
+    private static final Action METHOD_NOT_ALLOWED = r -> Actions.sendError( r, HttpStatus.SC_METHOD_NOT_ALLOWED, "Method not allowed" );
+
+    private final Action[] slots = new Action[SLOTS];
+    private final Map<String, Action> extensions;
+
+    /**
+     *
+     * @param actions actions keyed by upper case method name
+     */
+    MethodTable( Map<String, Action> actions )
+    {
+        Map<String, Action> ext = new HashMap<>();
+        actions.forEach( ( m, a ) -> {
+            int slot = slot( m );
+            if( slot < 0 ) {
+                ext.put( m, a );
+            }
+            else {
+                slots[slot] = a;
+            }
+        } );
+        for( int i = 0; i < SLOTS; i++ ) {
+            if( slots[i] == null ) {
+                slots[i] = METHOD_NOT_ALLOWED;
+            }
+        }
+        extensions = ext.isEmpty() ? Collections.emptyMap() : ext;
+    }
+
+    private static int slot( String method )
+    {
+        switch( method ) {
+            case "GET":
+                return GET;
+            case "HEAD":
+                return HEAD;
+            case "POST":
+                return POST;
+            case "PUT":
+                return PUT;
+            case "DELETE":
+                return DELETE;
+            case "OPTIONS":
+                return OPTIONS;
+            case "TRACE":
+                return TRACE;
+            case "PATCH":
+                return PATCH;
+            case "CONNECT":
+                return CONNECT;
+            default:
+                return -1;
+        }
+    }
+
+    Action lookup( String method )
+    {
+        int slot = slot( method );
+        if( slot > -1 ) {
+            return slots[slot];
+        }
+
+        Action a = extensions.get( method );
+        if( a == null ) {
+            // Methods are case sensitive but we have always accepted any case
+            String m = method.toUpperCase( Locale.ROOT );
+            if( !m.equals( method ) ) {
+                slot = slot( m );
+                a = slot > -1 ? slots[slot] : extensions.get( m );
+            }
+        }
+        return a == null ? METHOD_NOT_ALLOWED : a;
+    }
+
+    @Override
+    public void apply( Request request )
+            throws HttpException,
+                   IOException
+    {
+        lookup( request.getHttpRequest().getRequestLine().getMethod() ).apply( request );
+    }
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import onl.area51.httpd.action.PathParams;
+import onl.area51.httpd.action.Request;
+import onl.area51.httpd.util.EmptyEntity;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A server side cache of complete responses, so read heavy endpoints are not recomputing the same body on every request.
+ * <p>
+ * Install with {@link HttpRequestHandlerBuilder#cache(onl.area51.httpd.ResponseCache)} or {@link #wrap(org.apache.http.protocol.HttpRequestHandler)}.
+ * GET and HEAD requests without credentials are looked up by method, URI and the values of the configured request headers.
+ * <p>
+ * A response is only stored when the handler allows it: a 200 with a Cache-Control s-maxage or max-age, as set by
+ * {@link onl.area51.httpd.action.Request#maxAge(java.time.Duration)}, without no-store, private or no-cache. It must
+ * have a known length within the entry limit, must not set a cookie and any Vary header must only name headers that are
+ * part of the key. The body is held as a byte array and the cache is bounded by size with the least recently used
+ * entries evicted.
+ * <p>
+ * A conditional request matching a cached entry's ETag or Last-Modified is answered with 304 Not Modified.
+ * <p>
+ * Once an entry expires it is still served for the stale-while-revalidate period, from the builder or the response's own
+ * directive, while a single background refresh runs the handler again. Context listeners are not run for that refresh.
+ *
+ * @author peter
+ */
+public class ResponseCache
+{
+
+    private static final Logger LOG = Logger.getLogger( ResponseCache.class.getName() );
+
+    private static volatile ExecutorService defaultExecutor;
+
+    private final String[] keyHeaders;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxEntrySize;
+    private final long staleNanos;
+    private final Executor executor;
+    private final Map<String, Entry> entries = new LinkedHashMap<>( 16, 0.75f, true );
+    private long bytes;
+    private long hits;
+    private long staleHits;
+    private long misses;
+
+    private ResponseCache( Builder b )
+    {
+        keyHeaders = b.keyHeaders.toArray( new String[b.keyHeaders.size()] );
+        maxEntries = b.maxEntries;
+        maxBytes = b.maxBytes;
+        maxEntrySize = b.maxEntrySize;
+        staleNanos = b.staleNanos;
+        executor = b.executor;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Shared executor for refreshes when none is configured
+     */
+    private static Executor defaultExecutor()
+    {
+        ExecutorService e = defaultExecutor;
+        if( e == null ) {
+            synchronized( ResponseCache.class ) {
+                e = defaultExecutor;
+                if( e == null ) {
+                    ThreadFactory factory = Workers.threadFactory( "HTTP-cache-refresh" );
+                    e = Executors.newCachedThreadPool( r -> {
+                        Thread t = factory.newThread( r );
+                        t.setDaemon( true );
+                        return t;
+                    } );
+                    defaultExecutor = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Wrap a handler with this cache
+     *
+     * @param handler
+     *
+     * @return
+     */
+    public HttpRequestHandler wrap( HttpRequestHandler handler )
+    {
+        return ( req, resp, ctx ) -> {
+            String key = key( req );
+            if( key == null ) {
+                handler.handle( req, resp, ctx );
+                return;
+            }
+
+            Entry e = lookup( key );
+            if( e != null ) {
+                e.send( req, resp, ctx );
+                if( e.isExpired() && e.refreshing.compareAndSet( false, true ) ) {
+                    refresh( key, e, handler, req, ctx );
+                }
+                return;
+            }
+
+            handler.handle( req, resp, ctx );
+            Entry n = capture( resp );
+            if( n != null ) {
+                put( key, n );
+            }
+        };
+    }
+
+    /**
+     * The cache key of a request
+     *
+     * @return key or null if the request cannot be cached
+     */
+    private String key( HttpRequest req )
+    {
+        String method = req.getRequestLine().getMethod();
+        if( !("GET".equals( method ) || "HEAD".equals( method )) || req.containsHeader( "Authorization" ) ) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder( method ).append( ' ' ).append( req.getRequestLine().getUri() );
+        for( String name: keyHeaders ) {
+            sb.append( '\n' ).append( name ).append( ':' );
+            for( Header h: req.getHeaders( name ) ) {
+                sb.append( h.getValue() ).append( ',' );
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find a fresh entry, or a stale one that may still be served
+     */
+    private synchronized Entry lookup( String key )
+    {
+        Entry e = entries.get( key );
+        if( e != null ) {
+            long now = System.nanoTime();
+            if( now - e.expires < 0 ) {
+                hits++;
+                return e;
+            }
+            if( now - e.staleUntil < 0 ) {
+                staleHits++;
+                return e;
+            }
+            remove( key );
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Store a response if it's cacheable. The response's entity is replaced with the buffered copy.
+     *
+     * @return entry or null if not cacheable
+     */
+    private Entry capture( HttpResponse resp )
+            throws IOException
+    {
+        HttpEntity entity = resp.getEntity();
+        if( resp.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null || entity.isStreaming() ) {
+            return null;
+        }
+        long length = entity.getContentLength();
+        if( length < 0 || length > maxEntrySize || !isVaryCovered( resp ) ) {
+            return null;
+        }
+
+        // A cookie belongs to the client it was sent to
+        if( resp.containsHeader( "Set-Cookie" ) || resp.containsHeader( "Set-Cookie2" ) ) {
+            return null;
+        }
+
+        long maxAge = -1;
+        long sMaxAge = -1;
+        long stale = staleNanos;
+        for( Header h: resp.getHeaders( "Cache-Control" ) ) {
+            for( HeaderElement e: h.getElements() ) {
+                switch( e.getName().toLowerCase( Locale.ROOT ) ) {
+                    case "no-store":
+                    case "no-cache":
+                    case "private":
+                        return null;
+                    case "max-age":
+                        maxAge = seconds( e.getValue() );
+                        break;
+                    case "s-maxage":
+                        sMaxAge = seconds( e.getValue() );
+                        break;
+                    case "stale-while-revalidate":
+                        stale = Math.max( stale, TimeUnit.SECONDS.toNanos( Math.max( 0, seconds( e.getValue() ) ) ) );
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        long ttl = sMaxAge >= 0 ? sMaxAge : maxAge;
+        if( ttl <= 0 ) {
+            return null;
+        }
+
+        byte[] body = EntityUtils.toByteArray( entity );
+        Entry e = new Entry( resp.getAllHeaders(), entity.getContentType(), entity.getContentEncoding(), body,
+                             TimeUnit.SECONDS.toNanos( ttl ), stale );
+        resp.setEntity( e.entity() );
+        return e;
+    }
+
+    private static long seconds( String s )
+    {
+        try {
+            return s == null ? -1 : Long.parseLong( s.trim() );
+        }
+        catch( NumberFormatException ex ) {
+            return -1;
+        }
+    }
+
+    /**
+     * Does the key distinguish every header the response varies by
+     */
+    private boolean isVaryCovered( HttpResponse resp )
+    {
+        for( Header h: resp.getHeaders( "Vary" ) ) {
+            for( HeaderElement e: h.getElements() ) {
+                boolean found = false;
+                for( String name: keyHeaders ) {
+                    found |= name.equalsIgnoreCase( e.getName() );
+                }
+                if( !found ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void refresh( String key, Entry stale, HttpRequestHandler handler, HttpRequest req, HttpContext ctx )
+    {
+        // Copy what the handler needs now as the originals are reused once this request completes
+        BasicHttpRequest request = new BasicHttpRequest( req.getRequestLine() );
+        request.setHeaders( req.getAllHeaders() );
+        Object pathParams = ctx.getAttribute( PathParams.ATTRIBUTE );
+
+        try {
+            executor.execute( () -> {
+                try {
+                    HttpContext context = new BasicHttpContext();
+                    if( pathParams != null ) {
+                        context.setAttribute( PathParams.ATTRIBUTE, pathParams );
+                    }
+                    HttpResponse response = new BasicHttpResponse( HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK" );
+                    handler.handle( request, response, context );
+                    Entry e = capture( response );
+                    if( e != null ) {
+                        put( key, e );
+                    }
+                }
+                catch( HttpException |
+                       IOException |
+                       RuntimeException ex ) {
+                    LOG.log( Level.WARNING, ex, () -> "Failed to refresh " + request.getRequestLine() );
+                }
+                finally {
+                    stale.refreshing.set( false );
+                }
+            } );
+        }
+        catch( RejectedExecutionException ex ) {
+            stale.refreshing.set( false );
+        }
+    }
+
+    private synchronized void put( String key, Entry e )
+    {
+        Entry old = entries.put( key, e );
+        if( old != null ) {
+            bytes -= old.body.length;
+        }
+        bytes += e.body.length;
+
+        Iterator<Entry> it = entries.values().iterator();
+        while( it.hasNext() && (entries.size() > maxEntries || bytes > maxBytes) ) {
+            bytes -= it.next().body.length;
+            it.remove();
+        }
+    }
+
+    private void remove( String key )
+    {
+        Entry e = entries.remove( key );
+        if( e != null ) {
+            bytes -= e.body.length;
+        }
+    }
+
+    /**
+     * Remove all entries
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Total size of the cached bodies
+     *
+     * @return
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Number of requests served from a fresh entry
+     *
+     * @return
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Number of requests served from an expired entry while it is refreshed
+     *
+     * @return
+     */
+    public synchronized long getStaleHits()
+    {
+        return staleHits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    private static final class Entry
+    {
+
+        private final Header[] headers;
+        private final Header contentType;
+        private final Header contentEncoding;
+        private final String etag;
+        private final Instant lastModified;
+        private final byte[] body;
+        private final long created;
+        private final long expires;
+        private final long staleUntil;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry( Header[] headers, Header contentType, Header contentEncoding, byte[] body, long ttl, long stale )
+        {
+            this.headers = headers;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+            this.etag = value( headers, "ETag" );
+            String lm = value( headers, "Last-Modified" );
+            Date d = lm == null ? null : DateUtils.parseDate( lm );
+            this.lastModified = d == null ? null : d.toInstant();
+            this.created = System.nanoTime();
+            this.expires = created + ttl;
+            this.staleUntil = expires + stale;
+        }
+
+        private static String value( Header[] headers, String name )
+        {
+            for( Header h: headers ) {
+                if( h.getName().equalsIgnoreCase( name ) ) {
+                    return h.getValue();
+                }
+            }
+            return null;
+        }
+
+        boolean isExpired()
+        {
+            return System.nanoTime() - expires >= 0;
+        }
+
+        HttpEntity entity()
+        {
+            ByteArrayEntity entity = new ByteArrayEntity( body );
+            entity.setContentType( contentType );
+            entity.setContentEncoding( contentEncoding );
+            return entity;
+        }
+
+        void send( HttpRequest req, HttpResponse resp, HttpContext ctx )
+        {
+            // Replace anything already set, e.g. by an interceptor, rather than repeating it
+            for( Header h: headers ) {
+                resp.removeHeaders( h.getName() );
+            }
+            for( Header h: headers ) {
+                resp.addHeader( h );
+            }
+            resp.setHeader( "Age", String.valueOf( TimeUnit.NANOSECONDS.toSeconds( System.nanoTime() - created ) ) );
+
+            if( Request.create( req, resp, ctx ).isNotModified( etag, lastModified ) ) {
+                resp.setStatusCode( HttpStatus.SC_NOT_MODIFIED );
+                resp.setEntity( EmptyEntity.INSTANCE );
+            }
+            else {
+                resp.setStatusCode( HttpStatus.SC_OK );
+                resp.setEntity( entity() );
+            }
+        }
+    }
+
+    public static class Builder
+    {
+
+        private final List<String> keyHeaders = new ArrayList<>();
+        private int maxEntries = 10000;
+        private long maxBytes = 64L << 20;
+        private int maxEntrySize = 1 << 20;
+        private long staleNanos;
+        private Executor executor;
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Request headers whose values are part of the key, e.g. "Accept-Language" if the response depends on it
+         *
+         * @param names
+         *
+         * @return
+         */
+        public Builder keyHeaders( String... names )
+        {
+            for( String name: names ) {
+                keyHeaders.add( name );
+            }
+            return this;
+        }
+
+        /**
+         * Maximum number of entries. Defaults to 10000.
+         *
+         * @param maxEntries
+         *
+         * @return
+         */
+        public Builder maxEntries( int maxEntries )
+        {
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Maximum total size of the cached bodies. Defaults to 64Mb.
+         *
+         * @param maxBytes
+         *
+         * @return
+         */
+        public Builder maxBytes( long maxBytes )
+        {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Largest body to cache. Defaults to 1Mb.
+         *
+         * @param maxEntrySize
+         *
+         * @return
+         */
+        public Builder maxEntrySize( int maxEntrySize )
+        {
+            this.maxEntrySize = maxEntrySize;
+            return this;
+        }
+
+        /**
+         * How long an expired entry may be served while it is refreshed, unless the response's stale-while-revalidate
+         * directive allows longer. Defaults to 0.
+         *
+         * @param time
+         * @param unit
+         *
+         * @return
+         */
+        public Builder staleWhileRevalidate( long time, TimeUnit unit )
+        {
+            this.staleNanos = unit.toNanos( time );
+            return this;
+        }
+
+        /**
+         * The executor to run refreshes on. Defaults to a shared pool of daemon threads.
+         *
+         * @param executor
+         *
+         * @return
+         */
+        public Builder executor( Executor executor )
+        {
+            this.executor = executor;
+            return this;
+        }
+
+        public ResponseCache build()
+        {
+            if( maxEntries < 1 || maxBytes < 1 || maxEntrySize < 0 ) {
+                throw new IllegalArgumentException( "Invalid cache size" );
+            }
+            if( executor == null ) {
+                executor = defaultExecutor();
+            }
+            return new ResponseCache( this );
+        }
+    }
+}
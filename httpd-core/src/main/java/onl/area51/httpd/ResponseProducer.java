@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd;
+
+import java.io.IOException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.EntityAsyncContentProducer;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseProducer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Equivalent to {@link org.apache.http.nio.protocol.BasicAsyncResponseProducer} except the entity is only looked at once
+ * the response interceptors have run, so an interceptor may replace it, e.g. to compress it, as it can with the blocking
+ * engine.
+ *
+ * @author peter
+ */
+class ResponseProducer
+        implements HttpAsyncResponseProducer
+{
+
+    private final HttpResponse response;
+    private final HttpEntity submitted;
+    private HttpAsyncContentProducer producer;
+
+    ResponseProducer( HttpResponse response )
+    {
+        this.response = response;
+        this.submitted = response.getEntity();
+    }
+
+    @Override
+    public HttpResponse generateResponse()
+    {
+        return response;
+    }
+
+    @Override
+    public void produceContent( ContentEncoder encoder, IOControl ioctrl )
+            throws IOException
+    {
+        if( producer == null ) {
+            HttpEntity entity = response.getEntity();
+            if( entity == null ) {
+                encoder.complete();
+                return;
+            }
+            producer = entity instanceof HttpAsyncContentProducer
+                       ? (HttpAsyncContentProducer) entity
+                       : new EntityAsyncContentProducer( entity );
+        }
+        producer.produceContent( encoder, ioctrl );
+        if( encoder.isCompleted() ) {
+            producer.close();
+        }
+    }
+
+    @Override
+    public void responseCompleted( HttpContext context )
+    {
+    }
+
+    @Override
+    public void failed( Exception ex )
+    {
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if( producer != null ) {
+            producer.close();
+        }
+        else {
+            // No content was sent, e.g. HEAD where the engine drops the entity, but it may still hold resources or have a
+            // thread waiting on it
+            HttpEntity entity = response.getEntity() == null ? submitted : response.getEntity();
+            if( entity instanceof HttpAsyncContentProducer ) {
+                ((HttpAsyncContentProducer) entity).close();
+            }
+        }
+    }
+}
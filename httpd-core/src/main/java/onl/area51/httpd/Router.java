@@ -0,0 +1,380 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import onl.area51.httpd.action.PathParams;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+/**
+ * Routes requests to the handlers registered with {@link HttpServerBuilder#registerHandler(java.lang.String, org.apache.http.protocol.HttpRequestHandler)
+ * }.
+ * <p>
+ * All patterns are compiled into a radix tree when the server is built so the cost of a lookup depends on the length of the
+ * path, not the number of routes. The patterns accepted are those of {@link org.apache.http.protocol.UriHttpRequestHandlerMapper}
+ * with the same precedence: an exact match wins, otherwise the longest matching "prefix*" or "*suffix" pattern.
+ * <p>
+ * In addition a path segment may be a template like {@code /users/{id}/orders/{oid}} which matches any single non-empty
+ * segment. Where a template and a literal segment both match the literal wins. The captured segments are available from
+ * {@link onl.area51.httpd.action.Request#getPathParam(java.lang.String)}.
+ *
+ * @author peter
+ */
+class Router
+        implements HttpRequestHandler
+{
+
+    private final Node root = new Node( "" );
+    private final Route[] suffixes;
+    private final int maxParams;
+    // Reused by each lookup on a thread so routing does not allocate
+    private final ThreadLocal<Match> matches;
+
+    Router( Map<String, HttpRequestHandler> handlers )
+    {
+        List<Route> suffixList = new ArrayList<>();
+        int max = 0;
+        for( Map.Entry<String, HttpRequestHandler> e: handlers.entrySet() ) {
+            String pattern = e.getKey();
+            if( pattern.length() > 1 && pattern.startsWith( "*" ) ) {
+                suffixList.add( new Route( pattern, e.getValue(), new String[0] ) );
+            }
+            else {
+                max = Math.max( max, add( pattern, e.getValue() ) );
+            }
+        }
+        // Longest first so the first hit is the best
+        suffixList.sort( Comparator.comparingInt( ( Route r ) -> r.pattern.length() ).reversed() );
+        suffixes = suffixList.toArray( new Route[suffixList.size()] );
+        maxParams = max;
+        matches = ThreadLocal.withInitial( () -> new Match( maxParams ) );
+        root.freeze();
+    }
+
+    /**
+     * Add a pattern to the tree
+     *
+     * @return number of parameters in the pattern
+     */
+    private int add( String pattern, HttpRequestHandler handler )
+    {
+        boolean prefix = pattern.endsWith( "*" );
+        String path = prefix ? pattern.substring( 0, pattern.length() - 1 ) : pattern;
+
+        List<String> names = new ArrayList<>();
+        Node n = root;
+        int i = 0;
+        while( i < path.length() ) {
+            int s = path.indexOf( '{', i );
+            if( s < 0 ) {
+                n = n.insert( path.substring( i ) );
+                break;
+            }
+
+            int e = path.indexOf( '}', s );
+            if( e < 0 || (s > 0 && path.charAt( s - 1 ) != '/') || (e + 1 < path.length() && path.charAt( e + 1 ) != '/') ) {
+                throw new IllegalArgumentException( "Path parameters must be a whole segment: " + pattern );
+            }
+            if( s > i ) {
+                n = n.insert( path.substring( i, s ) );
+            }
+            if( n.param == null ) {
+                n.param = new Node( "" );
+            }
+            n = n.param;
+            names.add( path.substring( s + 1, e ) );
+            i = e + 1;
+        }
+
+        Route route = new Route( pattern, handler, names.toArray( new String[names.size()] ) );
+        if( prefix ) {
+            n.prefix = route;
+        }
+        else {
+            n.exact = route;
+        }
+        return names.size();
+    }
+
+    @Override
+    public void handle( HttpRequest request, HttpResponse response, HttpContext context )
+            throws HttpException,
+                   IOException
+    {
+        String uri = request.getRequestLine().getUri();
+
+        // As UriHttpRequestHandlerMapper, ignore any query or fragment
+        int end = uri.indexOf( '?' );
+        if( end < 0 ) {
+            end = uri.indexOf( '#' );
+        }
+        if( end < 0 ) {
+            end = uri.length();
+        }
+
+        Match m = lookup( uri, end );
+        Route route = m.route;
+        if( route == null ) {
+            // Same as HttpService when no handler is found
+            response.setStatusCode( HttpStatus.SC_NOT_IMPLEMENTED );
+            return;
+        }
+
+        // Only a template needs anything allocating, the offsets copied as the match is reused
+        if( route.names.length > 0 ) {
+            context.setAttribute( PathParams.ATTRIBUTE,
+                                  new PathParams( uri, route.names, Arrays.copyOf( m.captures, route.names.length << 1 ) ) );
+        }
+        route.handler.handle( request, response, context );
+    }
+
+    /**
+     * Find the route for a path. The result is only valid until the next lookup on the same thread.
+     *
+     * @param path
+     * @param end  end of the path within the uri
+     *
+     * @return
+     */
+    Match lookup( String path, int end )
+    {
+        Match m = matches.get();
+        m.reset();
+        match( root, path, 0, end, 0, m );
+
+        if( !m.exact ) {
+            for( Route r: suffixes ) {
+                if( m.route != null && r.pattern.length() <= m.route.pattern.length() ) {
+                    break;
+                }
+                int l = r.pattern.length() - 1;
+                if( end >= l && path.regionMatches( end - l, r.pattern, 1, l ) ) {
+                    m.route = r;
+                    break;
+                }
+            }
+        }
+        return m;
+    }
+
+    private void match( Node n, String path, int i, int end, int depth, Match m )
+    {
+        if( n.prefix != null ) {
+            m.prefix( n.prefix, depth );
+        }
+
+        if( i == end ) {
+            if( n.exact != null ) {
+                m.exact( n.exact, depth );
+            }
+            return;
+        }
+
+        // Literals before parameters
+        Node c = n.child( path.charAt( i ) );
+        if( c != null ) {
+            int l = c.label.length();
+            if( i + l <= end && path.regionMatches( i + 1, c.label, 1, l - 1 ) ) {
+                match( c, path, i + l, end, depth, m );
+                if( m.exact ) {
+                    return;
+                }
+            }
+        }
+
+        if( n.param != null ) {
+            int j = i;
+            while( j < end && path.charAt( j ) != '/' ) {
+                j++;
+            }
+            if( j > i ) {
+                m.working[depth << 1] = i;
+                m.working[(depth << 1) + 1] = j;
+                match( n.param, path, j, end, depth + 1, m );
+            }
+        }
+    }
+
+    private static class Route
+    {
+
+        private final String pattern;
+        private final HttpRequestHandler handler;
+        private final String[] names;
+
+        Route( String pattern, HttpRequestHandler handler, String[] names )
+        {
+            this.pattern = pattern;
+            this.handler = handler;
+            this.names = names;
+        }
+    }
+
+    /**
+     * A node in the tree. The label is the literal text on the edge leading to this node.
+     */
+    private static class Node
+    {
+
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private String label;
+        private Node[] children = NO_CHILDREN;
+        // first character of each child's label, searched instead of the children
+        private char[] index;
+        private Node param;
+        private Route exact;
+        private Route prefix;
+
+        Node( String label )
+        {
+            this.label = label;
+        }
+
+        Node child( char c )
+        {
+            char[] idx = index;
+            int i = Arrays.binarySearch( idx, c );
+            return i < 0 ? null : children[i];
+        }
+
+        /**
+         * Insert a literal below this node, splitting edges as required
+         *
+         * @return the node at the end of the literal
+         */
+        Node insert( String s )
+        {
+            Node n = this;
+            int i = 0;
+            while( i < s.length() ) {
+                Node c = null;
+                for( Node child: n.children ) {
+                    if( child.label.charAt( 0 ) == s.charAt( i ) ) {
+                        c = child;
+                        break;
+                    }
+                }
+
+                if( c == null ) {
+                    c = new Node( s.substring( i ) );
+                    n.children = Arrays.copyOf( n.children, n.children.length + 1 );
+                    n.children[n.children.length - 1] = c;
+                    return c;
+                }
+
+                int k = 1;
+                while( k < c.label.length() && i + k < s.length() && c.label.charAt( k ) == s.charAt( i + k ) ) {
+                    k++;
+                }
+
+                if( k < c.label.length() ) {
+                    // Split the edge, the new node taking the common part
+                    Node mid = new Node( c.label.substring( 0, k ) );
+                    c.label = c.label.substring( k );
+                    mid.children = new Node[]{c};
+                    for( int j = 0; j < n.children.length; j++ ) {
+                        if( n.children[j] == c ) {
+                            n.children[j] = mid;
+                        }
+                    }
+                    c = mid;
+                }
+
+                n = c;
+                i += k;
+            }
+            return n;
+        }
+
+        /**
+         * Sort the children and build the index once all routes are added
+         */
+        void freeze()
+        {
+            Arrays.sort( children, Comparator.comparing( c -> c.label.charAt( 0 ) ) );
+            index = new char[children.length];
+            for( int i = 0; i < children.length; i++ ) {
+                index[i] = children[i].label.charAt( 0 );
+                children[i].freeze();
+            }
+            if( param != null ) {
+                param.freeze();
+            }
+        }
+    }
+
+    /**
+     * The state of a lookup. Parameters are held as start and end offsets into the uri.
+     */
+    static class Match
+    {
+
+        private Route route;
+        private boolean exact;
+        // offsets of the parameters on the path currently being tried
+        private final int[] working;
+        // offsets of the parameters of the best route so far
+        private final int[] captures;
+
+        Match( int maxParams )
+        {
+            working = new int[maxParams << 1];
+            captures = new int[maxParams << 1];
+        }
+
+        void reset()
+        {
+            route = null;
+            exact = false;
+        }
+
+        void exact( Route r, int depth )
+        {
+            route = r;
+            exact = true;
+            capture( depth );
+        }
+
+        /**
+         * A prefix only replaces a previous one if it's pattern is longer, as UriPatternMatcher
+         */
+        void prefix( Route r, int depth )
+        {
+            if( route == null || r.pattern.length() > route.pattern.length() ) {
+                route = r;
+                capture( depth );
+            }
+        }
+
+        private void capture( int depth )
+        {
+            if( depth > 0 ) {
+                System.arraycopy( working, 0, captures, 0, depth << 1 );
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd;
+
+/**
+ * What to do with a request when every worker is busy and the queue is full.
+ *
+ * @author peter
+ * @see HttpServerBuilder#setWorkerPool(int, int, onl.area51.httpd.ShedPolicy)
+ */
+public enum ShedPolicy
+{
+    /**
+     * Immediately respond to the new request with 503 Service Unavailable and a Retry-After header
+     */
+    REJECT,
+    /**
+     * Respond to the oldest queued request with 503 Service Unavailable and queue the new one in it's place
+     */
+    DROP_OLDEST,
+    /**
+     * Block the I/O thread until there is room in the queue. No request is shed but that thread stops reading new requests
+     * until a worker becomes free.
+     */
+    BLOCK
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for the worker executors used by the non-blocking engine
+ *
+ * @author peter
+ */
+class Workers
+{
+
+    private Workers()
+    {
+    }
+
+    static ThreadFactory threadFactory( String prefix )
+    {
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread( r, prefix + "-" + count.incrementAndGet() );
+    }
+
+    /**
+     * An unbounded pool, equivalent to the one the blocking engine uses for it's connections
+     *
+     * @return
+     */
+    static ExecutorService cachedPool()
+    {
+        return Executors.newCachedThreadPool( threadFactory( "HTTP-worker" ) );
+    }
+
+    /**
+     * A fixed size pool with a bounded queue
+     *
+     * @param threads          number of threads
+     * @param queueSize        maximum number of queued tasks, 0 for none
+     * @param rejectionHandler invoked when the queue is full
+     *
+     * @return
+     */
+    static ExecutorService boundedPool( int threads, int queueSize, RejectedExecutionHandler rejectionHandler )
+    {
+        BlockingQueue<Runnable> queue = queueSize == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>( queueSize );
+        return new ThreadPoolExecutor( threads, threads, 60L, TimeUnit.SECONDS, queue, threadFactory( "HTTP-worker" ), rejectionHandler );
+    }
+
+    /**
+     * An executor that starts a new virtual thread per task.
+     * <p>
+     * Virtual threads are only available from Java 21 so this is looked up reflectively. On older runtimes this falls back
+     * to {@link #cachedPool()}.
+     *
+     * @return
+     */
+    static ExecutorService virtualThreads()
+    {
+        try {
+            Class<?> builderClass = Class.forName( "java.lang.Thread$Builder" );
+            Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+            builder = builderClass.getMethod( "name", String.class, long.class ).invoke( builder, "HTTP-vworker-", 1L );
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod( "factory" ).invoke( builder );
+
+            Method m = Executors.class.getMethod( "newThreadPerTaskExecutor", ThreadFactory.class );
+            return (ExecutorService) m.invoke( null, factory );
+        }
+        catch( ReflectiveOperationException |
+               RuntimeException ex ) {
+            return cachedPool();
+        }
+    }
+}
@@ -37,12 +37,7 @@ public interface Action
     default Action andThen( Action after )
     {
         Objects.requireNonNull( after );
-        return ( req ) -> {
-            apply( req );
-            if( isOk( req ) ) {
-                after.apply( req );
-            }
-        };
+        return ActionChain.of( this, after );
     }
 
     static Action and( Action a, Action b )
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import org.apache.http.HttpException;
+
+/**
+ * A sequence of {@link Action}'s run in a single loop, stopping as soon as one of them has sent a response.
+ * <p>
+ * This is what {@link Action#andThen(onl.area51.httpd.action.Action)} and
+ * {@link onl.area51.httpd.HttpRequestHandlerBuilder.ChainBuilder#end()} produce. Chains are flattened when combined so a
+ * chain of many steps costs one stack frame and one {@link Actions#isOk(onl.area51.httpd.action.Request)} check per step
+ * rather than a lambda nested for each step.
+ *
+ * @author peter
+ */
+public final class ActionChain
+        implements Action
+{
+
+    private final Action[] steps;
+
+    private ActionChain( Action[] steps )
+    {
+        this.steps = steps;
+    }
+
+    /**
+     * Create a chain, flattening any chains within it
+     *
+     * @param actions
+     *
+     * @return the chain, or the action if there is only one
+     */
+    public static Action of( Action... actions )
+    {
+        List<Action> l = new ArrayList<>( actions.length );
+        for( Action a: actions ) {
+            add( l, a );
+        }
+        return of( l );
+    }
+
+    /**
+     * Create a chain, flattening any chains within it
+     *
+     * @param actions
+     *
+     * @return the chain, or the action if there is only one
+     */
+    public static Action of( Collection<? extends Action> actions )
+    {
+        List<Action> l = new ArrayList<>( actions.size() );
+        for( Action a: actions ) {
+            add( l, a );
+        }
+        if( l.isEmpty() ) {
+            throw new IllegalArgumentException( "No actions in chain" );
+        }
+        return l.size() == 1 ? l.get( 0 ) : new ActionChain( l.toArray( new Action[l.size()] ) );
+    }
+
+    private static void add( List<Action> l, Action a )
+    {
+        Objects.requireNonNull( a );
+        if( a instanceof ActionChain ) {
+            for( Action s: ((ActionChain) a).steps ) {
+                l.add( s );
+            }
+        }
+        else {
+            l.add( a );
+        }
+    }
+
+    /**
+     * The number of steps in this chain
+     *
+     * @return
+     */
+    public int size()
+    {
+        return steps.length;
+    }
+
+    @Override
+    public void apply( Request request )
+            throws HttpException,
+                   IOException
+    {
+        final Action[] s = steps;
+        final int last = s.length - 1;
+        for( int i = 0; i < last; i++ ) {
+            s[i].apply( request );
+            if( !Actions.isOk( request ) ) {
+                return;
+            }
+        }
+        s[last].apply( request );
+    }
+
+    @Override
+    public Action andThen( Action after )
+    {
+        return of( this, after );
+    }
+}
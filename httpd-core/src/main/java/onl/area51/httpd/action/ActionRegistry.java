@@ -42,6 +42,8 @@ public interface ActionRegistry
      * @param handler
      *
      * @return
+     *
+     * @see HttpServerBuilder#registerHandler(java.lang.String, org.apache.http.protocol.HttpRequestHandler)
      */
     ActionRegistry registerHandler( String pattern, HttpRequestHandler handler );
 
@@ -18,11 +18,32 @@ package onl.area51.httpd.action;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
 import onl.area51.httpd.HttpRequestHandlerBuilder;
 import onl.area51.httpd.HttpServerBuilder;
+import onl.area51.httpd.util.ByteRange;
+import onl.area51.httpd.util.ByteRangesEntity;
+import onl.area51.httpd.util.ContentTypeResolver;
+import onl.area51.httpd.util.EmptyEntity;
+import onl.area51.httpd.util.GzipVariants;
+import onl.area51.httpd.util.MappedFileCache;
+import onl.area51.httpd.util.MappedPathEntity;
+import onl.area51.httpd.util.PathEntity;
+import onl.area51.httpd.util.ResourceCache;
+import onl.area51.httpd.util.StreamingEntity;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
@@ -179,10 +200,191 @@ public interface Actions
                                               ContentType.TEXT_HTML ) );
     }
 
+    /**
+     * Send a 304 Not Modified response
+     *
+     * @param req
+     */
+    static void sendNotModified( Request req )
+    {
+        HttpResponse response = req.getHttpResponse();
+        response.setStatusCode( HttpStatus.SC_NOT_MODIFIED );
+        response.setEntity( EmptyEntity.INSTANCE );
+    }
+
+    /**
+     * The entity tag of a file, derived from it's size and modification time
+     *
+     * @param size
+     * @param lastModified
+     *
+     * @return
+     */
+    static String etag( long size, Instant lastModified )
+    {
+        return "\"" + Long.toHexString( size ) + "-" + Long.toHexString( lastModified.toEpochMilli() ) + "\"";
+    }
+
+    /**
+     * Send a file, honouring If-None-Match and If-Modified-Since, and Range requests with If-Range.
+     *
+     * @param req
+     * @param file
+     *
+     * @throws IOException
+     */
+    static void sendPath( Request req, Path file )
+            throws IOException
+    {
+        ContentType ct = ContentTypeResolver.resolve( file );
+        sendPath( req, file, ct == ContentType.APPLICATION_OCTET_STREAM ? null : ct );
+    }
+
+    /**
+     * Send a file, honouring If-None-Match and If-Modified-Since, and Range requests with If-Range.
+     * <p>
+     * A single range is sent as a 206 Partial Content response of just that part of the file, more than one as
+     * multipart/byteranges.
+     * <p>
+     * If the client accepts gzip and the file has a gzip variant, see {@link GzipVariants}, then that is sent instead.
+     * <p>
+     * If a default {@link MappedFileCache} has been set then a whole file is sent from it's memory mapping.
+     *
+     * @param req
+     * @param file
+     * @param contentType content type, null for none
+     *
+     * @throws IOException
+     */
+    static void sendPath( Request req, Path file, ContentType contentType )
+            throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes( file, BasicFileAttributes.class );
+        Instant lastModified = attrs.lastModifiedTime().toInstant();
+        String etag = etag( attrs.size(), lastModified );
+        long size = attrs.size();
+
+        boolean gzip = GzipVariants.acceptsGzip( req );
+        Path variant = gzip ? GzipVariants.variant( file, attrs, contentType ) : null;
+        Path send = file;
+        BasicFileAttributes sendAttrs = attrs;
+        if( variant != null ) {
+            send = variant;
+            sendAttrs = Files.readAttributes( variant, BasicFileAttributes.class );
+            size = sendAttrs.size();
+            etag = GzipVariants.etag( etag );
+        }
+        if( variant != null || (!gzip && GzipVariants.mayHaveVariant( file, contentType )) ) {
+            req.addHeader( "Vary", "Accept-Encoding" );
+        }
+
+        req.etag( etag ).lastModified( lastModified ).addHeader( "Accept-Ranges", "bytes" );
+        if( req.isNotModified( etag, lastModified ) ) {
+            sendNotModified( req );
+            return;
+        }
+
+        List<ByteRange> ranges = "GET".equals( req.getHttpRequest().getRequestLine().getMethod() ) && isRangeCurrent( req, etag, lastModified )
+                                 ? ByteRange.parse( req.getHeader( "Range" ), size )
+                                 : null;
+        HttpResponse response = req.getHttpResponse();
+        if( variant != null ) {
+            response.setHeader( "Content-Encoding", "gzip" );
+        }
+        if( ranges == null ) {
+            // Hot files are sent from their mapping if one is configured
+            MappedFileCache mapped = MappedFileCache.getDefault();
+            sendOk( req, mapped == null ? new PathEntity( send, contentType ) : MappedPathEntity.create( mapped, send, sendAttrs, contentType ) );
+        }
+        else if( ranges.isEmpty() ) {
+            response.setStatusCode( HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE );
+            response.setHeader( "Content-Range", "bytes */" + size );
+            response.setEntity( EmptyEntity.INSTANCE );
+        }
+        else if( ranges.size() == 1 ) {
+            ByteRange range = ranges.get( 0 );
+            response.setStatusCode( HttpStatus.SC_PARTIAL_CONTENT );
+            response.setHeader( "Content-Range", range.contentRange( size ) );
+            response.setEntity( new PathEntity( send, contentType, range.getFirst(), range.getLength() ) );
+        }
+        else {
+            response.setStatusCode( HttpStatus.SC_PARTIAL_CONTENT );
+            response.setEntity( new ByteRangesEntity( send, contentType, ranges, size ) );
+        }
+    }
+
+    /**
+     * Should a Range header be honoured. It is unless an If-Range header is present which does not match the current
+     * entity tag, using the strong comparison, or last modified time.
+     *
+     * @param req
+     * @param etag
+     * @param lastModified
+     *
+     * @return
+     */
+    static boolean isRangeCurrent( Request req, String etag, Instant lastModified )
+    {
+        String ifRange = req.getHeader( "If-Range" );
+        if( ifRange == null ) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if( ifRange.startsWith( "\"" ) || ifRange.startsWith( "W/" ) ) {
+            return etag != null && !etag.startsWith( "W/" ) && ifRange.equals( etag );
+        }
+        Date d = DateUtils.parseDate( ifRange );
+        return d != null && lastModified != null && d.getTime() / 1000L == lastModified.getEpochSecond();
+    }
+
+    /**
+     * Has no response been sent yet, i.e. no entity has been set and the status is still 200.
+     *
+     * @param req
+     *
+     * @return
+     */
     static boolean isOk( Request req )
     {
         HttpResponse resp = req.getHttpResponse();
-        return (resp.getStatusLine() == null || resp.getStatusLine().getStatusCode() == HttpStatus.SC_OK) && resp.getEntity() == null;
+        if( resp.getEntity() != null ) {
+            return false;
+        }
+        StatusLine statusLine = resp.getStatusLine();
+        return statusLine == null || statusLine.getStatusCode() == HttpStatus.SC_OK;
+    }
+
+    /**
+     * An action whose output is streamed to the client as it is written rather than buffered until it completes, so the
+     * first bytes of a large page go out straight away and it is never held in memory.
+     * <p>
+     * The response is sent as 200 with the content type text/html. The action cannot change the status or headers and
+     * nothing before it should write to {@link Request#getResponse()}.
+     *
+     * @param action action generating the content
+     *
+     * @return
+     *
+     * @see StreamingEntity
+     */
+    static Action streaming( Action action )
+    {
+        return streaming( ContentType.TEXT_HTML, action );
+    }
+
+    /**
+     * An action whose output is streamed to the client as it is written
+     *
+     * @param contentType content type of the response
+     * @param action      action generating the content
+     *
+     * @return
+     *
+     * @see #streaming(onl.area51.httpd.action.Action)
+     */
+    static Action streaming( ContentType contentType, Action action )
+    {
+        return r -> sendOk( r, new StreamingEntity( r, action, contentType ) );
     }
 
     /**
@@ -262,6 +464,51 @@ public interface Actions
             if( path.endsWith( "/" ) ) {
                 path = path + "index.html";
             }
+            ResourceCache cache = ResourceCache.getDefault();
+            ResourceCache.Resource resource = cache.getIfPresent( clazz, path );
+            if( resource == null ) {
+                URL resourceUrl = clazz.getResource( path );
+                if( resourceUrl == null ) {
+                    return;
+                }
+
+                // Resources on the filesystem, e.g. exploded during development, are not cached so changes are seen and
+                // can be sent without copying
+                Path file = resourcePath( resourceUrl );
+                if( file == null ) {
+                    resource = cache.load( clazz, path, resourceUrl );
+                }
+                else if( !r.isResponsePresent() ) {
+                    sendPath( r, file );
+                    return;
+                }
+            }
+
+            if( resource != null ) {
+                if( r.isResponsePresent() ) {
+                    r.getResponse().copy( resource.getContent() );
+                }
+                else {
+                    ResourceCache.Resource gzip = resource.getGzip();
+                    if( gzip != null ) {
+                        r.addHeader( "Vary", "Accept-Encoding" );
+                        if( GzipVariants.acceptsGzip( r ) ) {
+                            resource = gzip;
+                        }
+                    }
+
+                    r.etag( resource.getETag() );
+                    if( r.isNotModified( resource.getETag(), null ) ) {
+                        sendNotModified( r );
+                    }
+                    else {
+                        r.getHttpResponse().setEntity( resource.createEntity() );
+                    }
+                }
+                return;
+            }
+
+            // Too large to cache or on the filesystem so stream it
             InputStream is = clazz.getResourceAsStream( path );
             if( is != null ) {
                 if( r.isResponsePresent() ) {
@@ -282,4 +529,26 @@ public interface Actions
         }
     }
 
+    /**
+     * The file backing a resource
+     *
+     * @param url resource url
+     *
+     * @return Path or null if the resource is not a regular file
+     */
+    static Path resourcePath( URL url )
+    {
+        if( url != null && "file".equals( url.getProtocol() ) ) {
+            try {
+                Path file = Paths.get( url.toURI() );
+                if( Files.isRegularFile( file ) ) {
+                    return file;
+                }
+            }
+            catch( URISyntaxException |
+                   IllegalArgumentException ex ) {
+            }
+        }
+        return null;
+    }
 }
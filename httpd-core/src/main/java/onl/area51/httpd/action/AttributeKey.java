@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A typed request attribute held in a fixed slot of the request rather than in the {@link org.apache.http.protocol.HttpContext}.
+ * <p>
+ * Each key is given a slot when it is first created, usually as a constant, so {@link Request#getAttribute(onl.area51.httpd.action.AttributeKey)}
+ * and {@link Request#setAttribute(onl.area51.httpd.action.AttributeKey, java.lang.Object)} are an array access rather than a
+ * hash lookup. Only the first {@link #MAX_SLOTS} keys get a slot, any created after that are held in the context.
+ * <p>
+ * The string attribute methods, such as {@link Request#getAttribute(java.lang.String)}, see values set through a key. Values
+ * are only copied into the {@link org.apache.http.protocol.HttpContext} when {@link Request#getHttpContext()} is called, so
+ * code holding the context from elsewhere will not see values set since. Reading a key whose slot is empty falls back to
+ * the context.
+ *
+ * <pre>
+ * static final AttributeKey&lt;User&gt; USER = AttributeKey.of( "user" );
+ *
+ * r.setAttribute( USER, user );
+ * User u = r.getAttribute( USER );
+ * </pre>
+ *
+ * @author peter
+ * @param <T> type of the value
+ */
+public final class AttributeKey<T>
+{
+
+    /**
+     * The maximum number of keys held in slots, bounding the slots each request may allocate
+     */
+    static final int MAX_SLOTS = 64;
+
+    private static final ConcurrentMap<String, AttributeKey<?>> KEYS = new ConcurrentHashMap<>();
+    private static final AttributeKey<?>[] SLOTTED = new AttributeKey<?>[MAX_SLOTS];
+    private static volatile int count;
+
+    /**
+     * Cache of {@link Request#getPath()}
+     */
+    static final AttributeKey<String[]> PATH = of( "request.path" );
+
+    /**
+     * Cache of {@link Request#getPathSegments()} for requests which do not hold it themselves
+     */
+    static final AttributeKey<PathSegments> PATH_SEGMENTS = of( "request.pathSegments" );
+
+    private final String name;
+    private final int index;
+
+    private AttributeKey( String name, int index )
+    {
+        this.name = name;
+        this.index = index;
+    }
+
+    /**
+     * The key for an attribute name. The same key is returned for the same name.
+     *
+     * @param <T>
+     * @param name
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> AttributeKey<T> of( String name )
+    {
+        Objects.requireNonNull( name );
+        AttributeKey<?> key = KEYS.get( name );
+        if( key == null ) {
+            synchronized( KEYS ) {
+                key = KEYS.get( name );
+                if( key == null ) {
+                    key = new AttributeKey<>( name, count );
+                    if( count < MAX_SLOTS ) {
+                        SLOTTED[count] = key;
+                    }
+                    KEYS.put( name, key );
+                    // Written last so a reader seeing the count sees the key
+                    count++;
+                }
+            }
+        }
+        return (AttributeKey<T>) key;
+    }
+
+    /**
+     * The key for an attribute name if one has been created
+     *
+     * @param name
+     *
+     * @return key or null
+     */
+    static AttributeKey<Object> lookup( String name )
+    {
+        @SuppressWarnings("unchecked")
+        AttributeKey<Object> key = (AttributeKey<Object>) KEYS.get( name );
+        return key;
+    }
+
+    /**
+     * The key held in a slot
+     *
+     * @param index
+     *
+     * @return
+     */
+    static AttributeKey<Object> slotted( int index )
+    {
+        @SuppressWarnings("unchecked")
+        AttributeKey<Object> key = (AttributeKey<Object>) (index < count ? SLOTTED[index] : null);
+        return key;
+    }
+
+    /**
+     * The number of slots needed for the keys created so far
+     *
+     * @return
+     */
+    static int slots()
+    {
+        return Math.min( count, MAX_SLOTS );
+    }
+
+    /**
+     * Is this key's value held in a slot rather than the context
+     *
+     * @return
+     */
+    boolean isSlotted()
+    {
+        return index < MAX_SLOTS;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * The slot this key's value is held in
+     *
+     * @return
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
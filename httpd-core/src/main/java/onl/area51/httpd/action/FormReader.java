@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads an application/x-www-form-urlencoded body one parameter at a time, as returned by {@link Request#getForm()}.
+ * <p>
+ * The body is decoded as it is read so only the current parameter is held in memory, not the whole body.
+ *
+ * <pre>
+ * try( FormReader form = r.getForm() ) {
+ *     while( form.next() ) {
+ *         String name = form.getName();
+ *         String value = form.getValue();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author peter
+ */
+public class FormReader
+        implements Closeable
+{
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final Charset charset;
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private final int[] pushback = new int[2];
+    private int pushed;
+    private boolean eof;
+
+    // The decoded bytes of the current parameter, the name being the first nameEnd bytes
+    private byte[] field = new byte[64];
+    private int length;
+    private int nameEnd;
+    private String name;
+    private String value;
+
+    /**
+     *
+     * @param in      the body
+     * @param charset charset of the decoded bytes
+     */
+    public FormReader( InputStream in, Charset charset )
+    {
+        this.in = in;
+        this.charset = charset;
+    }
+
+    private int read()
+            throws IOException
+    {
+        if( pushed > 0 ) {
+            return pushback[--pushed];
+        }
+        if( pos == limit ) {
+            if( eof ) {
+                return -1;
+            }
+            limit = in.read( input, 0, input.length );
+            pos = 0;
+            if( limit < 1 ) {
+                limit = 0;
+                eof = true;
+                return -1;
+            }
+        }
+        return input[pos++] & 0xff;
+    }
+
+    private void unread( int b )
+    {
+        if( b > -1 ) {
+            pushback[pushed++] = b;
+        }
+    }
+
+    private void append( int b )
+    {
+        if( length == field.length ) {
+            field = Arrays.copyOf( field, length << 1 );
+        }
+        field[length++] = (byte) b;
+    }
+
+    /**
+     * Read the next parameter
+     *
+     * @return true if there is a parameter, false at the end of the body
+     *
+     * @throws IOException
+     */
+    public boolean next()
+            throws IOException
+    {
+        name = null;
+        value = null;
+        int b;
+        do {
+            length = 0;
+            nameEnd = -1;
+            while( (b = read()) > -1 && b != '&' ) {
+                switch( b ) {
+                    case '=':
+                        if( nameEnd < 0 ) {
+                            nameEnd = length;
+                        }
+                        else {
+                            append( b );
+                        }
+                        break;
+                    case '+':
+                        append( ' ' );
+                        break;
+                    case '%':
+                        int h = read();
+                        int l = h < 0 ? -1 : read();
+                        if( h > -1 && l > -1 && Character.digit( h, 16 ) > -1 && Character.digit( l, 16 ) > -1 ) {
+                            append( (Character.digit( h, 16 ) << 4) | Character.digit( l, 16 ) );
+                        }
+                        else {
+                            // Not an escape so keep it and read what followed again
+                            append( b );
+                            unread( l );
+                            unread( h );
+                        }
+                        break;
+                    default:
+                        append( b );
+                        break;
+                }
+            }
+            // Skip empty parameters, e.g. "a=1&&b=2"
+        } while( length == 0 && nameEnd < 0 && b > -1 );
+
+        if( length == 0 && nameEnd < 0 ) {
+            return false;
+        }
+        if( nameEnd < 0 ) {
+            nameEnd = length;
+        }
+        name = new String( field, 0, nameEnd, charset );
+        value = new String( field, nameEnd, length - nameEnd, charset );
+        return true;
+    }
+
+    /**
+     * The decoded name of the current parameter
+     *
+     * @return name or null if {@link #next()} has not returned true
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * The decoded value of the current parameter
+     *
+     * @return value, "" if the parameter has no value, or null if {@link #next()} has not returned true
+     */
+    public String getValue()
+    {
+        return value;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        in.close();
+    }
+}
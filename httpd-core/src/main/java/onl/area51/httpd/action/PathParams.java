@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The path parameters captured when a request was routed to a handler registered with a template like
+ * {@code /users/{id}/orders/{oid}}.
+ * <p>
+ * Values are held as offsets into the request path so nothing is copied unless a value is asked for, and the numeric
+ * accessors parse straight from the path without creating a String.
+ *
+ * @author peter
+ * @see Request#getPathParam(java.lang.String)
+ */
+public final class PathParams
+{
+
+    /**
+     * The request attribute the router stores the captured parameters under
+     */
+    public static final String ATTRIBUTE = "request.pathParams";
+
+    private final String path;
+    private final String[] names;
+    private final int[] offsets;
+
+    /**
+     *
+     * @param path    the raw request path
+     * @param names   parameter names in the order they appear in the template
+     * @param offsets start and end offsets into path for each parameter
+     */
+    public PathParams( String path, String[] names, int[] offsets )
+    {
+        this.path = path;
+        this.names = names;
+        this.offsets = offsets;
+    }
+
+    /**
+     * The number of parameters
+     *
+     * @return
+     */
+    public int size()
+    {
+        return names.length;
+    }
+
+    /**
+     * The name of a parameter
+     *
+     * @param i index of parameter
+     *
+     * @return
+     */
+    public String getName( int i )
+    {
+        return names[i];
+    }
+
+    private int indexOf( String name )
+    {
+        for( int i = 0; i < names.length; i++ ) {
+            if( names[i].equals( name ) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Is a parameter present
+     *
+     * @param name
+     *
+     * @return
+     */
+    public boolean contains( String name )
+    {
+        return indexOf( name ) > -1;
+    }
+
+    /**
+     * Return a parameter, percent decoded
+     *
+     * @param name
+     *
+     * @return value or null if not present
+     */
+    public String get( String name )
+    {
+        int i = indexOf( name );
+        return i < 0 ? null : decode( path, offsets[i << 1], offsets[(i << 1) + 1] );
+    }
+
+    /**
+     * Return a parameter as an int
+     *
+     * @param name
+     * @param defaultValue value to return if not present
+     *
+     * @return
+     *
+     * @throws NumberFormatException if the value is not an integer
+     */
+    public int getInt( String name, int defaultValue )
+    {
+        int i = indexOf( name );
+        return i < 0 ? defaultValue : parseInt( path, offsets[i << 1], offsets[(i << 1) + 1] );
+    }
+
+    /**
+     * Return a parameter as a long
+     *
+     * @param name
+     * @param defaultValue value to return if not present
+     *
+     * @return
+     *
+     * @throws NumberFormatException if the value is not an integer
+     */
+    public long getLong( String name, long defaultValue )
+    {
+        int i = indexOf( name );
+        return i < 0 ? defaultValue : parseLong( i );
+    }
+
+    private long parseLong( int i )
+    {
+        return parseLong( path, offsets[i << 1], offsets[(i << 1) + 1] );
+    }
+
+    /**
+     * Parse part of a string as a decimal long without creating a String
+     *
+     * @throws NumberFormatException if it is not an integer
+     */
+    static long parseLong( String str, int start, int end )
+    {
+        int s = start;
+        int e = end;
+        boolean negative = s < e && str.charAt( s ) == '-';
+        if( negative || (s < e && str.charAt( s ) == '+') ) {
+            s++;
+        }
+        if( s == e ) {
+            throw numberFormatException( str, start, end );
+        }
+
+        // Accumulate negatively so Long.MIN_VALUE can be parsed
+        long v = 0;
+        for( int j = s; j < e; j++ ) {
+            int d = str.charAt( j ) - '0';
+            if( d < 0 || d > 9 || v < (Long.MIN_VALUE + d) / 10 ) {
+                throw numberFormatException( str, start, end );
+            }
+            v = v * 10 - d;
+        }
+        if( !negative ) {
+            if( v == Long.MIN_VALUE ) {
+                throw numberFormatException( str, start, end );
+            }
+            v = -v;
+        }
+        return v;
+    }
+
+    /**
+     * Parse part of a string as a decimal int without creating a String
+     *
+     * @throws NumberFormatException if it is not an integer
+     */
+    static int parseInt( String str, int start, int end )
+    {
+        long v = parseLong( str, start, end );
+        if( v < Integer.MIN_VALUE || v > Integer.MAX_VALUE ) {
+            throw numberFormatException( str, start, end );
+        }
+        return (int) v;
+    }
+
+    private static NumberFormatException numberFormatException( String str, int start, int end )
+    {
+        return new NumberFormatException( "For input string: \"" + str.substring( start, end ) + "\"" );
+    }
+
+    /**
+     * Decode %xx escapes. Unlike {@link java.net.URLDecoder} '+' is left alone as this is a path not a form.
+     * <p>
+     * Runs of escapes are decoded as UTF-8. Any other character is kept as is, whether or not the value contains an
+     * escape, so the same unescaped text always decodes the same way.
+     */
+    static String decode( String s, int start, int end )
+    {
+        int i = s.indexOf( '%', start );
+        if( i < 0 || i >= end ) {
+            return s.substring( start, end );
+        }
+
+        StringBuilder sb = new StringBuilder( end - start ).append( s, start, i );
+        byte[] bytes = null;
+        while( i < end ) {
+            char c = s.charAt( i );
+            if( c == '%' && QueryString.isEscape( s, i, end ) ) {
+                // Decode a run of escapes together as they may form a multi byte character
+                if( bytes == null ) {
+                    bytes = new byte[(end - i) / 3];
+                }
+                int n = 0;
+                while( i < end && s.charAt( i ) == '%' && QueryString.isEscape( s, i, end ) ) {
+                    bytes[n++] = (byte) ((Character.digit( s.charAt( i + 1 ), 16 ) << 4) | Character.digit( s.charAt( i + 2 ), 16 ));
+                    i += 3;
+                }
+                sb.append( new String( bytes, 0, n, StandardCharsets.UTF_8 ) );
+            }
+            else {
+                sb.append( c );
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder( "{" );
+        for( int i = 0; i < names.length; i++ ) {
+            if( i > 0 ) {
+                sb.append( ", " );
+            }
+            sb.append( names[i] ).append( '=' ).append( get( names[i] ) );
+        }
+        return sb.append( '}' ).toString();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+/**
+ * The segments of a request path, as returned by {@link Request#getPathSegments()}.
+ * <p>
+ * The path is split at every '/' as {@link String#split(java.lang.String)} would, so the first segment is always "" and
+ * trailing empty segments are dropped: "/test/ldb/MDE" has the segments "", "test", "ldb" and "MDE". The segments are
+ * held as offsets into the raw request path so nothing is copied unless a segment is asked for, a segment without
+ * escapes being returned without decoding, and {@link #matches(int, java.lang.String)} and the numeric accessors read
+ * straight from the path.
+ * <p>
+ * As the raw path is split before decoding an escaped '/', i.e. %2F, does not start a new segment.
+ *
+ * @author peter
+ * @see Request#getPath(int)
+ */
+public final class PathSegments
+{
+
+    private final String path;
+    private final int[] offsets;
+    private final int size;
+
+    private PathSegments( String path, int[] offsets, int size )
+    {
+        this.path = path;
+        this.offsets = offsets;
+        this.size = size;
+    }
+
+    /**
+     * Split the path of a request URI. Any query or fragment is ignored.
+     *
+     * @param uri the raw request URI, either a path or an absolute URI
+     *
+     * @return
+     */
+    public static PathSegments parse( String uri )
+    {
+        int end = uri.indexOf( '?' );
+        if( end < 0 ) {
+            end = uri.indexOf( '#' );
+        }
+        if( end < 0 ) {
+            end = uri.length();
+        }
+
+        // Skip the scheme and authority of an absolute URI
+        int start = 0;
+        int scheme = uri.indexOf( "://" );
+        if( scheme > -1 && scheme < end && uri.indexOf( '/' ) > scheme ) {
+            start = uri.indexOf( '/', scheme + 3 );
+            if( start < 0 || start > end ) {
+                start = end;
+            }
+        }
+
+        int count = 1;
+        for( int i = start; i < end; i++ ) {
+            if( uri.charAt( i ) == '/' ) {
+                count++;
+            }
+        }
+
+        int[] offsets = new int[count << 1];
+        int n = 0;
+        int s = start;
+        for( int i = start; i <= end; i++ ) {
+            if( i == end || uri.charAt( i ) == '/' ) {
+                offsets[n++] = s;
+                offsets[n++] = i;
+                s = i + 1;
+            }
+        }
+
+        // As String.split drop trailing empty segments, unless the path is empty
+        int size = count;
+        if( end > start ) {
+            while( size > 0 && offsets[(size << 1) - 2] == offsets[(size << 1) - 1] ) {
+                size--;
+            }
+        }
+        return new PathSegments( uri, offsets, size );
+    }
+
+    /**
+     * The number of segments
+     *
+     * @return
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    private void check( int i )
+    {
+        if( i < 0 || i >= size ) {
+            throw new IndexOutOfBoundsException( "Segment " + i + " of " + size );
+        }
+    }
+
+    /**
+     * Return a segment, percent decoded
+     *
+     * @param i index of segment
+     *
+     * @return value or null if there are not that many segments
+     */
+    public String get( int i )
+    {
+        if( i >= size ) {
+            return null;
+        }
+        check( i );
+        return PathParams.decode( path, offsets[i << 1], offsets[(i << 1) + 1] );
+    }
+
+    /**
+     * Is a segment equal to a value. A segment without escapes is compared without decoding.
+     *
+     * @param i index of segment
+     * @param s value
+     *
+     * @return false if not equal or there are not that many segments
+     */
+    public boolean matches( int i, String s )
+    {
+        if( i >= size ) {
+            return false;
+        }
+        check( i );
+        int start = offsets[i << 1];
+        int end = offsets[(i << 1) + 1];
+        int p = path.indexOf( '%', start );
+        if( p < 0 || p >= end ) {
+            return end - start == s.length() && path.regionMatches( start, s, 0, s.length() );
+        }
+        return s.equals( get( i ) );
+    }
+
+    /**
+     * Return a segment as an int
+     *
+     * @param i            index of segment
+     * @param defaultValue value to return if there are not that many segments
+     *
+     * @return
+     *
+     * @throws NumberFormatException if the segment is not an integer
+     */
+    public int getInt( int i, int defaultValue )
+    {
+        if( i >= size ) {
+            return defaultValue;
+        }
+        check( i );
+        return PathParams.parseInt( path, offsets[i << 1], offsets[(i << 1) + 1] );
+    }
+
+    /**
+     * Return a segment as a long
+     *
+     * @param i            index of segment
+     * @param defaultValue value to return if there are not that many segments
+     *
+     * @return
+     *
+     * @throws NumberFormatException if the segment is not an integer
+     */
+    public long getLong( int i, long defaultValue )
+    {
+        if( i >= size ) {
+            return defaultValue;
+        }
+        check( i );
+        return PathParams.parseLong( path, offsets[i << 1], offsets[(i << 1) + 1] );
+    }
+
+    /**
+     * The decoded segments
+     *
+     * @return a new array
+     */
+    public String[] toArray()
+    {
+        String[] a = new String[size];
+        for( int i = 0; i < size; i++ ) {
+            a[i] = get( i );
+        }
+        return a;
+    }
+
+    @Override
+    public String toString()
+    {
+        return size == 0 ? "/" : path.substring( offsets[0], offsets[(size << 1) - 1] );
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The parameters in the query of a raw request URI.
+ * <p>
+ * The query is scanned once, recording where each name and value starts and ends in a flat array, and a name or value is
+ * only decoded when it is asked for. Names and values without escapes are returned as substrings of the URI without any
+ * decoding. The query is decoded as UTF-8 form data, '+' being a space, and a malformed escape is kept as is.
+ * <p>
+ * Where a name appears more than once {@link #get(java.lang.String)} returns the first value and
+ * {@link #getAll(java.lang.String)} all of them. The typed accessors read the first value straight from the URI, so a
+ * numeric value without escapes is parsed without creating a String, and treat an empty value as not present.
+ *
+ * @author peter
+ */
+final class QueryString
+{
+
+    // Each parameter has 4 entries: name start, name end, value start and value end. A parameter without '=' has an
+    // empty value at the end of the name
+    private static final int STRIDE = 4;
+
+    private final String uri;
+    private int[] offsets;
+    private int count;
+
+    QueryString( String uri )
+    {
+        this.uri = uri;
+
+        int q = uri.indexOf( '?' );
+        if( q < 0 ) {
+            return;
+        }
+        int end = uri.indexOf( '#', q );
+        if( end < 0 ) {
+            end = uri.length();
+        }
+
+        offsets = new int[STRIDE * 4];
+        int start = q + 1;
+        while( start < end ) {
+            int amp = uri.indexOf( '&', start );
+            if( amp < 0 || amp > end ) {
+                amp = end;
+            }
+            if( amp > start ) {
+                int eq = uri.indexOf( '=', start );
+                if( eq < 0 || eq > amp ) {
+                    eq = amp;
+                }
+                add( start, eq, Math.min( eq + 1, amp ), amp );
+            }
+            start = amp + 1;
+        }
+    }
+
+    private void add( int nameStart, int nameEnd, int valueStart, int valueEnd )
+    {
+        int i = count * STRIDE;
+        if( i == offsets.length ) {
+            int[] o = new int[offsets.length << 1];
+            System.arraycopy( offsets, 0, o, 0, i );
+            offsets = o;
+        }
+        offsets[i] = nameStart;
+        offsets[i + 1] = nameEnd;
+        offsets[i + 2] = valueStart;
+        offsets[i + 3] = valueEnd;
+        count++;
+    }
+
+    int size()
+    {
+        return count;
+    }
+
+    /**
+     * Find a parameter
+     *
+     * @param n decoded name
+     *
+     * @return index of the first parameter with this name or -1
+     */
+    int indexOf( String n )
+    {
+        for( int i = 0; i < count; i++ ) {
+            if( isName( i, n ) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Is the name of a parameter equal to n
+     */
+    boolean isName( int i, String n )
+    {
+        int s = offsets[i * STRIDE];
+        int e = offsets[i * STRIDE + 1];
+        if( isPlain( s, e ) ) {
+            return e - s == n.length() && uri.regionMatches( s, n, 0, n.length() );
+        }
+        return decode( uri, s, e ).equals( n );
+    }
+
+    String getName( int i )
+    {
+        return decode( uri, offsets[i * STRIDE], offsets[i * STRIDE + 1] );
+    }
+
+    String getValue( int i )
+    {
+        return decode( uri, offsets[i * STRIDE + 2], offsets[i * STRIDE + 3] );
+    }
+
+    /**
+     * The first value of a parameter
+     *
+     * @param n decoded name
+     *
+     * @return decoded value, "" if the parameter has no value or null if not present
+     */
+    String get( String n )
+    {
+        int i = indexOf( n );
+        return i < 0 ? null : getValue( i );
+    }
+
+    /**
+     * All values of a parameter
+     *
+     * @param n decoded name
+     *
+     * @return decoded values in the order they appear, empty if not present
+     */
+    List<String> getAll( String n )
+    {
+        List<String> values = null;
+        for( int i = 0; i < count; i++ ) {
+            if( isName( i, n ) ) {
+                if( values == null ) {
+                    values = new ArrayList<>( 2 );
+                }
+                values.add( getValue( i ) );
+            }
+        }
+        return values == null ? Collections.emptyList() : Collections.unmodifiableList( values );
+    }
+
+    /**
+     * Find the first non empty value of a parameter
+     */
+    private int indexOfValue( String n )
+    {
+        int i = indexOf( n );
+        return i < 0 || offsets[i * STRIDE + 2] == offsets[i * STRIDE + 3] ? -1 : i;
+    }
+
+    int getInt( String n, int d )
+    {
+        int i = indexOfValue( n );
+        if( i < 0 ) {
+            return d;
+        }
+        long v = parseLong( i );
+        if( v < Integer.MIN_VALUE || v > Integer.MAX_VALUE ) {
+            throw numberFormatException( i );
+        }
+        return (int) v;
+    }
+
+    long getLong( String n, long d )
+    {
+        int i = indexOfValue( n );
+        return i < 0 ? d : parseLong( i );
+    }
+
+    double getDouble( String n, double d )
+    {
+        int i = indexOfValue( n );
+        return i < 0 ? d : Double.parseDouble( getValue( i ) );
+    }
+
+    boolean getBoolean( String n, boolean d )
+    {
+        int i = indexOfValue( n );
+        if( i < 0 ) {
+            return d;
+        }
+        int s = offsets[i * STRIDE + 2];
+        int e = offsets[i * STRIDE + 3];
+        return isPlain( s, e ) ? isTrue( uri, s, e ) : parseBoolean( getValue( i ) );
+    }
+
+    <E extends Enum<E>> E getEnum( String n, Class<E> c, E d )
+    {
+        int i = indexOfValue( n );
+        if( i < 0 ) {
+            return d;
+        }
+        int s = offsets[i * STRIDE + 2];
+        int e = offsets[i * STRIDE + 3];
+        if( isPlain( s, e ) ) {
+            for( E v: c.getEnumConstants() ) {
+                String name = v.name();
+                if( name.length() == e - s && uri.regionMatches( s, name, 0, name.length() ) ) {
+                    return v;
+                }
+            }
+        }
+        return Enum.valueOf( c, getValue( i ) );
+    }
+
+    private long parseLong( int i )
+    {
+        int s = offsets[i * STRIDE + 2];
+        int e = offsets[i * STRIDE + 3];
+        if( isPlain( s, e ) ) {
+            return PathParams.parseLong( uri, s, e );
+        }
+        String v = getValue( i );
+        return PathParams.parseLong( v, 0, v.length() );
+    }
+
+    private NumberFormatException numberFormatException( int i )
+    {
+        return new NumberFormatException( "For input string: \"" + getValue( i ) + "\"" );
+    }
+
+    /**
+     * Is a value true: one of "true", "on", "yes" or "1" ignoring case
+     *
+     * @param s
+     *
+     * @return
+     */
+    static boolean parseBoolean( String s )
+    {
+        return isTrue( s, 0, s.length() );
+    }
+
+    private static boolean isTrue( String s, int start, int end )
+    {
+        int len = end - start;
+        return (len == 4 && s.regionMatches( true, start, "true", 0, 4 ))
+               || (len == 2 && s.regionMatches( true, start, "on", 0, 2 ))
+               || (len == 3 && s.regionMatches( true, start, "yes", 0, 3 ))
+               || (len == 1 && s.charAt( start ) == '1');
+    }
+
+    /**
+     * The decoded names of all parameters in the order they first appear
+     *
+     * @return
+     */
+    Collection<String> getNames()
+    {
+        if( count == 0 ) {
+            return Collections.emptySet();
+        }
+        Set<String> names = new LinkedHashSet<>();
+        for( int i = 0; i < count; i++ ) {
+            names.add( getName( i ) );
+        }
+        return Collections.unmodifiableSet( names );
+    }
+
+    private boolean isPlain( int s, int e )
+    {
+        for( int i = s; i < e; i++ ) {
+            char c = uri.charAt( i );
+            if( c == '%' || c == '+' ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode part of a string as UTF-8 form data
+     *
+     * @param s
+     * @param start
+     * @param end
+     *
+     * @return
+     */
+    static String decode( String s, int start, int end )
+    {
+        int i = start;
+        while( i < end && s.charAt( i ) != '%' && s.charAt( i ) != '+' ) {
+            i++;
+        }
+        if( i == end ) {
+            return s.substring( start, end );
+        }
+
+        StringBuilder sb = new StringBuilder( end - start ).append( s, start, i );
+        byte[] bytes = null;
+        while( i < end ) {
+            char c = s.charAt( i );
+            if( c == '+' ) {
+                sb.append( ' ' );
+                i++;
+            }
+            else if( c == '%' && isEscape( s, i, end ) ) {
+                // Decode a run of escapes together as they may form a multi byte character
+                if( bytes == null ) {
+                    bytes = new byte[(end - i) / 3];
+                }
+                int n = 0;
+                while( i < end && s.charAt( i ) == '%' && isEscape( s, i, end ) ) {
+                    bytes[n++] = (byte) ((Character.digit( s.charAt( i + 1 ), 16 ) << 4) | Character.digit( s.charAt( i + 2 ), 16 ));
+                    i += 3;
+                }
+                sb.append( new String( bytes, 0, n, StandardCharsets.UTF_8 ) );
+            }
+            else {
+                sb.append( c );
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    static boolean isEscape( String s, int i, int end )
+    {
+        return i + 2 < end && Character.digit( s.charAt( i + 1 ), 16 ) >= 0 && Character.digit( s.charAt( i + 2 ), 16 ) >= 0;
+    }
+}
@@ -15,11 +15,14 @@
  */
 package onl.area51.httpd.action;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
@@ -29,15 +32,22 @@ import java.time.format.TextStyle;
 import java.time.temporal.ChronoUnit;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import onl.area51.httpd.util.GzipVariants;
+import onl.area51.httpd.util.LimitedInputStream;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.ContentType;
 import org.apache.http.protocol.HttpContext;
 
 /**
@@ -80,9 +90,220 @@ public interface Request
 
     default int getParamInt( String n )
             throws IOException
+    {
+        return getParamInt( n, 0 );
+    }
+
+    /**
+     * Return all values of a parameter which appears more than once in the query, e.g. {@code ?id=1&id=2}
+     *
+     * @param n parameter name
+     *
+     * @return values in the order they appear, empty if not present
+     *
+     * @throws IOException
+     */
+    default List<String> getParamValues( String n )
+            throws IOException
     {
         String s = getParam( n );
-        return s == null ? 0 : Integer.parseInt( s );
+        return s == null ? Collections.emptyList() : Collections.singletonList( s );
+    }
+
+    /**
+     * Return a parameter as an int
+     *
+     * @param n parameter name
+     * @param d value to return if not present or empty
+     *
+     * @return
+     *
+     * @throws IOException
+     * @throws NumberFormatException if the value is not an integer
+     */
+    default int getParamInt( String n, int d )
+            throws IOException
+    {
+        String s = getParam( n );
+        return s == null || s.isEmpty() ? d : Integer.parseInt( s );
+    }
+
+    /**
+     * Return a parameter as a long
+     *
+     * @param n parameter name
+     * @param d value to return if not present or empty
+     *
+     * @return
+     *
+     * @throws IOException
+     * @throws NumberFormatException if the value is not an integer
+     */
+    default long getParamLong( String n, long d )
+            throws IOException
+    {
+        String s = getParam( n );
+        return s == null || s.isEmpty() ? d : Long.parseLong( s );
+    }
+
+    /**
+     * Return a parameter as a double
+     *
+     * @param n parameter name
+     * @param d value to return if not present or empty
+     *
+     * @return
+     *
+     * @throws IOException
+     * @throws NumberFormatException if the value is not a number
+     */
+    default double getParamDouble( String n, double d )
+            throws IOException
+    {
+        String s = getParam( n );
+        return s == null || s.isEmpty() ? d : Double.parseDouble( s );
+    }
+
+    /**
+     * Return a parameter as a boolean. "true", "on", "yes" and "1", ignoring case, are true, anything else is false.
+     *
+     * @param n parameter name
+     * @param d value to return if not present or empty
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    default boolean getParamBoolean( String n, boolean d )
+            throws IOException
+    {
+        String s = getParam( n );
+        return s == null || s.isEmpty() ? d : QueryString.parseBoolean( s );
+    }
+
+    /**
+     * Return a parameter as an enum constant
+     *
+     * @param <E>
+     * @param n   parameter name
+     * @param c   enum class
+     * @param d   value to return if not present or empty
+     *
+     * @return
+     *
+     * @throws IOException
+     * @throws IllegalArgumentException if the value is not the name of a constant
+     */
+    default <E extends Enum<E>> E getParamEnum( String n, Class<E> c, E d )
+            throws IOException
+    {
+        String s = getParam( n );
+        return s == null || s.isEmpty() ? d : Enum.valueOf( c, s );
+    }
+
+    /**
+     * The context attribute holding the server's maximum request body size
+     *
+     * @see onl.area51.httpd.HttpServerBuilder#maxRequestBody(long)
+     */
+    static final String MAX_BODY_ATTRIBUTE = "request.maxBody";
+
+    /**
+     * The request's entity
+     *
+     * @return entity or null if the request has no body
+     */
+    default HttpEntity getRequestEntity()
+    {
+        HttpRequest req = getHttpRequest();
+        return req instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest) req).getEntity() : null;
+    }
+
+    /**
+     * The largest body this request may have, as set by {@link onl.area51.httpd.HttpServerBuilder#maxRequestBody(long)}
+     *
+     * @return size in bytes, Long.MAX_VALUE if not limited
+     */
+    default long getMaxBodySize()
+    {
+        Object o = getHttpContext().getAttribute( MAX_BODY_ATTRIBUTE );
+        return o instanceof Long ? (Long) o : Long.MAX_VALUE;
+    }
+
+    /**
+     * Stream the request body, limited by {@link #getMaxBodySize()}
+     *
+     * @return stream, empty if there is no body
+     *
+     * @throws IOException
+     * @see #getBodyStream(long)
+     */
+    default InputStream getBodyStream()
+            throws IOException
+    {
+        return getBodyStream( getMaxBodySize() );
+    }
+
+    /**
+     * Stream the request body.
+     * <p>
+     * If the body is larger than maxSize, or {@link #getMaxBodySize()} if that is smaller, then
+     * {@link org.apache.http.ContentTooLongException} is thrown, straight away if the client sent a Content-Length,
+     * otherwise once that much has been read. If not caught the request fails with 413 Request Entity Too Large.
+     *
+     * @param maxSize largest body to accept in bytes
+     *
+     * @return stream, empty if there is no body
+     *
+     * @throws IOException
+     */
+    default InputStream getBodyStream( long maxSize )
+            throws IOException
+    {
+        long max = Math.min( maxSize, getMaxBodySize() );
+        HttpEntity entity = getRequestEntity();
+        if( entity == null ) {
+            return new ByteArrayInputStream( new byte[0] );
+        }
+        if( entity.getContentLength() > max ) {
+            throw LimitedInputStream.tooLong( max );
+        }
+        InputStream is = entity.getContent();
+        return max == Long.MAX_VALUE ? is : new LimitedInputStream( is, max );
+    }
+
+    /**
+     * Read an application/x-www-form-urlencoded body one parameter at a time, limited by {@link #getMaxBodySize()}
+     *
+     * @return
+     *
+     * @throws IOException
+     * @see #getForm(long)
+     */
+    default FormReader getForm()
+            throws IOException
+    {
+        return getForm( getMaxBodySize() );
+    }
+
+    /**
+     * Read an application/x-www-form-urlencoded body one parameter at a time. The body is decoded with the charset in
+     * it's Content-Type, UTF-8 if none is given.
+     *
+     * @param maxSize largest body to accept in bytes
+     *
+     * @return
+     *
+     * @throws IOException
+     * @see #getBodyStream(long)
+     */
+    default FormReader getForm( long maxSize )
+            throws IOException
+    {
+        HttpEntity entity = getRequestEntity();
+        ContentType ct = entity == null ? null : ContentType.get( entity );
+        Charset cs = ct == null || ct.getCharset() == null ? StandardCharsets.UTF_8 : ct.getCharset();
+        return new FormReader( getBodyStream( maxSize ), cs );
     }
 
     /**
@@ -93,11 +314,57 @@ public interface Request
      *
      * @return value or null if not set
      */
+    @SuppressWarnings("unchecked")
     default <T> T getAttribute( String n )
     {
         return (T) getHttpContext().getAttribute( n );
     }
 
+    /**
+     * Return a request attribute by it's key
+     *
+     * @param <T>
+     * @param key Attribute key
+     *
+     * @return value or null if not set
+     */
+    @SuppressWarnings("unchecked")
+    default <T> T getAttribute( AttributeKey<T> key )
+    {
+        return (T) getHttpContext().getAttribute( key.getName() );
+    }
+
+    /**
+     * Set a request attribute by it's key
+     *
+     * @param <T>
+     * @param key Attribute key
+     * @param v   value, null to remove the attribute
+     *
+     * @return this instance
+     */
+    default <T> Request setAttribute( AttributeKey<T> key, T v )
+    {
+        if( v == null ) {
+            getHttpContext().removeAttribute( key.getName() );
+        }
+        else {
+            getHttpContext().setAttribute( key.getName(), v );
+        }
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    default Request removeAttribute( AttributeKey<?> key )
+    {
+        return setAttribute( (AttributeKey<Object>) key, null );
+    }
+
+    default boolean isAttributePresent( AttributeKey<?> key )
+    {
+        return getAttribute( key ) != null;
+    }
+
     /**
      * Return the request attribute n. If not set then use a mapping function to set it.
      *
@@ -148,12 +415,20 @@ public interface Request
 
     default Request removeAttribute( String n )
     {
+        AttributeKey<Object> key = AttributeKey.lookup( n );
+        if( key != null ) {
+            return removeAttribute( key );
+        }
         getHttpContext().removeAttribute( n );
         return this;
     }
 
     default Request setAttribute( String n, Object v )
     {
+        AttributeKey<Object> key = AttributeKey.lookup( n );
+        if( key != null ) {
+            return setAttribute( key, v );
+        }
         if( v == null ) {
             getHttpContext().removeAttribute( n );
         }
@@ -165,7 +440,7 @@ public interface Request
 
     default boolean isAttributePresent( String n )
     {
-        return getHttpContext().getAttribute( n ) != null;
+        return getAttribute( n ) != null;
     }
 
     default String getString( String n )
@@ -338,6 +613,87 @@ last-modified:Tue, 29 Mar 2016 12:27:11 GMT
     {
         return addHeader( "Access-Control-Allow-Origin", v );
     }
+
+    /**
+     * Return the first request header with a name
+     *
+     * @param n header name
+     *
+     * @return value or null if not present
+     */
+    default String getHeader( String n )
+    {
+        Header h = getHttpRequest().getFirstHeader( n );
+        return h == null ? null : h.getValue();
+    }
+
+    /**
+     * Set the ETag response header
+     *
+     * @param etag entity tag including the quotes, e.g. {@code "abc"} or {@code W/"abc"}
+     *
+     * @return
+     */
+    default Request etag( String etag )
+    {
+        return addHeader( "ETag", etag );
+    }
+
+    /**
+     * Does the request's If-None-Match header match an entity tag. Like RFC 7232 the weak comparison is used. The tag of
+     * the entity's compressed representation, see {@link GzipVariants#etag(java.lang.String)}, also matches.
+     *
+     * @param etag entity tag including the quotes
+     *
+     * @return true if the header is present and matches
+     */
+    default boolean isETagMatch( String etag )
+    {
+        String inm = getHeader( "If-None-Match" );
+        if( inm == null || etag == null ) {
+            return false;
+        }
+        String tag = etag.startsWith( "W/" ) ? etag.substring( 2 ) : etag;
+        String gzipTag = GzipVariants.etag( tag );
+        for( String s: inm.split( "," ) ) {
+            s = s.trim();
+            String t = s.startsWith( "W/" ) ? s.substring( 2 ) : s;
+            if( s.equals( "*" ) || t.equals( tag ) || t.equals( gzipTag ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Can a GET or HEAD request be answered with 304 Not Modified.
+     * <p>
+     * If-None-Match takes precedence so If-Modified-Since is only checked if that header is absent.
+     *
+     * @param etag         current entity tag including the quotes, null if unknown
+     * @param lastModified when the content was last modified, null if unknown
+     *
+     * @return true if the client's copy is current
+     */
+    default boolean isNotModified( String etag, Instant lastModified )
+    {
+        String method = getHttpRequest().getRequestLine().getMethod();
+        if( !"GET".equals( method ) && !"HEAD".equals( method ) ) {
+            return false;
+        }
+
+        if( getHttpRequest().containsHeader( "If-None-Match" ) ) {
+            return isETagMatch( etag );
+        }
+
+        String ims = getHeader( "If-Modified-Since" );
+        if( ims != null && lastModified != null ) {
+            Date d = DateUtils.parseDate( ims );
+            // Http dates only have a resolution of seconds
+            return d != null && lastModified.getEpochSecond() <= d.getTime() / 1000L;
+        }
+        return false;
+    }
     
     static Request create( HttpRequest req, HttpResponse resp, HttpContext ctx )
     {
@@ -345,60 +701,183 @@ last-modified:Tue, 29 Mar 2016 12:27:11 GMT
         {
             Response response;
             URI uri;
-            Map<String, String> params;
+            QueryString query;
+            PathSegments pathSegments;
+            Object[] slots;
+            // Slots set since the context was last brought up to date
+            long dirty;
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> T getAttribute( AttributeKey<T> key )
+            {
+                int i = key.getIndex();
+                Object v = slots == null || i >= slots.length ? null : slots[i];
+                // Not set by key so it may have been set directly on the context
+                return v == null ? (T) ctx.getAttribute( key.getName() ) : (T) v;
+            }
+
+            @Override
+            public <T> Request setAttribute( AttributeKey<T> key, T v )
+            {
+                if( !key.isSlotted() ) {
+                    setContextAttribute( key.getName(), v );
+                    return this;
+                }
+
+                int i = key.getIndex();
+                if( v == null ) {
+                    // Rare so remove from the context now, it may hold a value set directly or already copied there
+                    if( slots != null && i < slots.length ) {
+                        slots[i] = null;
+                        dirty &= ~(1L << i);
+                    }
+                    ctx.removeAttribute( key.getName() );
+                    return this;
+                }
+
+                if( slots == null || i >= slots.length ) {
+                    // Keys may have been created since the last request so size for all of them
+                    Object[] s = new Object[Math.max( i + 1, AttributeKey.slots() )];
+                    if( slots != null ) {
+                        System.arraycopy( slots, 0, s, 0, slots.length );
+                    }
+                    slots = s;
+                }
+                slots[i] = v;
+                dirty |= 1L << i;
+                return this;
+            }
 
-            private String decode( String s )
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> T getAttribute( String n )
+            {
+                // No slots so nothing has been set by key
+                if( slots != null ) {
+                    AttributeKey<Object> key = AttributeKey.lookup( n );
+                    if( key != null ) {
+                        return (T) getAttribute( key );
+                    }
+                }
+                return (T) ctx.getAttribute( n );
+            }
+
+            @Override
+            public Request setAttribute( String n, Object v )
+            {
+                if( slots != null ) {
+                    AttributeKey<Object> key = AttributeKey.lookup( n );
+                    if( key != null ) {
+                        return setAttribute( key, v );
+                    }
+                }
+                setContextAttribute( n, v );
+                return this;
+            }
+
+            @Override
+            public Request removeAttribute( String n )
+            {
+                return setAttribute( n, null );
+            }
+
+            private void setContextAttribute( String n, Object v )
             {
-                try {
-                    return URLDecoder.decode( s, "UTF-8" );
+                if( v == null ) {
+                    ctx.removeAttribute( n );
+                }
+                else {
+                    ctx.setAttribute( n, v );
                 }
-                catch( UnsupportedEncodingException ex ) {
-                    return s;
+            }
+
+            @Override
+            public PathSegments getPathSegments()
+            {
+                if( pathSegments == null ) {
+                    pathSegments = PathSegments.parse( req.getRequestLine().getUri() );
                 }
+                return pathSegments;
             }
 
-            private void decodeParams()
+            private QueryString query()
+            {
+                if( query == null ) {
+                    query = new QueryString( req.getRequestLine().getUri() );
+                }
+                return query;
+            }
+
+            @Override
+            public URI getURI()
                     throws IOException
             {
                 if( uri == null ) {
                     try {
                         uri = new URI( req.getRequestLine().getUri() );
-
-                        String q = uri.getQuery();
-                        params = q == null || q.isEmpty()
-                                 ? Collections.emptyMap()
-                                 : Stream.of( q.split( "&" ) )
-                                .map( s -> s.split( "=", 2 ) )
-                                .collect( Collectors.toMap( p -> decode( p[0] ), p -> p.length == 1 ? "" : decode( p[1] ) ) );
                     }
                     catch( URISyntaxException ex ) {
                         throw new IOException( ex );
                     }
                 }
+                return uri;
             }
 
             @Override
-            public URI getURI()
+            public Collection<String> getParamNames()
                     throws IOException
             {
-                decodeParams();
-                return uri;
+                return query().getNames();
             }
 
             @Override
-            public Collection<String> getParamNames()
+            public String getParam( String n )
                     throws IOException
             {
-                decodeParams();
-                return params.keySet();
+                return query().get( n );
             }
 
             @Override
-            public String getParam( String n )
+            public List<String> getParamValues( String n )
+                    throws IOException
+            {
+                return query().getAll( n );
+            }
+
+            @Override
+            public int getParamInt( String n, int d )
+                    throws IOException
+            {
+                return query().getInt( n, d );
+            }
+
+            @Override
+            public long getParamLong( String n, long d )
                     throws IOException
             {
-                decodeParams();
-                return params.get( n );
+                return query().getLong( n, d );
+            }
+
+            @Override
+            public double getParamDouble( String n, double d )
+                    throws IOException
+            {
+                return query().getDouble( n, d );
+            }
+
+            @Override
+            public boolean getParamBoolean( String n, boolean d )
+                    throws IOException
+            {
+                return query().getBoolean( n, d );
+            }
+
+            @Override
+            public <E extends Enum<E>> E getParamEnum( String n, Class<E> c, E d )
+                    throws IOException
+            {
+                return query().getEnum( n, c, d );
             }
 
             @Override
@@ -431,11 +910,169 @@ last-modified:Tue, 29 Mar 2016 12:27:11 GMT
             @Override
             public HttpContext getHttpContext()
             {
+                // Copy values set by key so code using the context sees them
+                for( long d = dirty; d != 0; d &= d - 1 ) {
+                    int i = Long.numberOfTrailingZeros( d );
+                    ctx.setAttribute( AttributeKey.slotted( i ).getName(), slots[i] );
+                }
+                dirty = 0;
                 return ctx;
             }
         };
     }
 
+    /**
+     * A view of this request whose {@link #getResponse()} writes to a writer, e.g. to capture what an action writes.
+     * Everything else is delegated to this request.
+     *
+     * @param writer
+     *
+     * @return
+     */
+    default Request capture( Writer writer )
+    {
+        Request delegate = this;
+        return new Request()
+        {
+            private Response response;
+
+            @Override
+            public URI getURI()
+                    throws IOException
+            {
+                return delegate.getURI();
+            }
+
+            @Override
+            public Collection<String> getParamNames()
+                    throws IOException
+            {
+                return delegate.getParamNames();
+            }
+
+            @Override
+            public String getParam( String n )
+                    throws IOException
+            {
+                return delegate.getParam( n );
+            }
+
+            @Override
+            public List<String> getParamValues( String n )
+                    throws IOException
+            {
+                return delegate.getParamValues( n );
+            }
+
+            @Override
+            public int getParamInt( String n, int d )
+                    throws IOException
+            {
+                return delegate.getParamInt( n, d );
+            }
+
+            @Override
+            public long getParamLong( String n, long d )
+                    throws IOException
+            {
+                return delegate.getParamLong( n, d );
+            }
+
+            @Override
+            public double getParamDouble( String n, double d )
+                    throws IOException
+            {
+                return delegate.getParamDouble( n, d );
+            }
+
+            @Override
+            public boolean getParamBoolean( String n, boolean d )
+                    throws IOException
+            {
+                return delegate.getParamBoolean( n, d );
+            }
+
+            @Override
+            public <E extends Enum<E>> E getParamEnum( String n, Class<E> c, E d )
+                    throws IOException
+            {
+                return delegate.getParamEnum( n, c, d );
+            }
+
+            @Override
+            public Response getResponse()
+            {
+                if( response == null ) {
+                    response = Response.create( this, writer );
+                }
+                return response;
+            }
+
+            @Override
+            public boolean isResponsePresent()
+            {
+                return response != null;
+            }
+
+            @Override
+            public HttpRequest getHttpRequest()
+            {
+                return delegate.getHttpRequest();
+            }
+
+            @Override
+            public HttpResponse getHttpResponse()
+            {
+                return delegate.getHttpResponse();
+            }
+
+            @Override
+            public HttpContext getHttpContext()
+            {
+                return delegate.getHttpContext();
+            }
+
+            @Override
+            public <T> T getAttribute( AttributeKey<T> key )
+            {
+                return delegate.getAttribute( key );
+            }
+
+            @Override
+            public <T> Request setAttribute( AttributeKey<T> key, T v )
+            {
+                delegate.setAttribute( key, v );
+                return this;
+            }
+
+            @Override
+            public <T> T getAttribute( String n )
+            {
+                return delegate.getAttribute( n );
+            }
+
+            @Override
+            public Request setAttribute( String n, Object v )
+            {
+                delegate.setAttribute( n, v );
+                return this;
+            }
+
+            @Override
+            public Request removeAttribute( String n )
+            {
+                delegate.removeAttribute( n );
+                return this;
+            }
+
+            @Override
+            public PathSegments getPathSegments()
+            {
+                return delegate.getPathSegments();
+            }
+        };
+    }
+
     default Request wrap( Map<String, Object> params )
     {
 
@@ -485,6 +1122,48 @@ last-modified:Tue, 29 Mar 2016 12:27:11 GMT
                 return delegate.getParam( n );
             }
 
+            @Override
+            public List<String> getParamValues( String n )
+                    throws IOException
+            {
+                return delegate.getParamValues( n );
+            }
+
+            @Override
+            public int getParamInt( String n, int d )
+                    throws IOException
+            {
+                return delegate.getParamInt( n, d );
+            }
+
+            @Override
+            public long getParamLong( String n, long d )
+                    throws IOException
+            {
+                return delegate.getParamLong( n, d );
+            }
+
+            @Override
+            public double getParamDouble( String n, double d )
+                    throws IOException
+            {
+                return delegate.getParamDouble( n, d );
+            }
+
+            @Override
+            public boolean getParamBoolean( String n, boolean d )
+                    throws IOException
+            {
+                return delegate.getParamBoolean( n, d );
+            }
+
+            @Override
+            public <E extends Enum<E>> E getParamEnum( String n, Class<E> c, E d )
+                    throws IOException
+            {
+                return delegate.getParamEnum( n, c, d );
+            }
+
             @Override
             public Response getResponse()
             {
@@ -515,6 +1194,49 @@ last-modified:Tue, 29 Mar 2016 12:27:11 GMT
                 return ctx;
             }
 
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> T getAttribute( AttributeKey<T> key )
+            {
+                Object o = params == null || params.isEmpty() ? null : params.get( key.getName() );
+                return o == null ? delegate.getAttribute( key ) : (T) o;
+            }
+
+            @Override
+            public <T> Request setAttribute( AttributeKey<T> key, T v )
+            {
+                delegate.setAttribute( key, v );
+                return this;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public <T> T getAttribute( String n )
+            {
+                Object o = params == null || params.isEmpty() ? null : params.get( n );
+                return o == null ? delegate.getAttribute( n ) : (T) o;
+            }
+
+            @Override
+            public Request setAttribute( String n, Object v )
+            {
+                delegate.setAttribute( n, v );
+                return this;
+            }
+
+            @Override
+            public Request removeAttribute( String n )
+            {
+                delegate.removeAttribute( n );
+                return this;
+            }
+
+            @Override
+            public PathSegments getPathSegments()
+            {
+                return delegate.getPathSegments();
+            }
+
         };
     }
 
@@ -534,14 +1256,30 @@ last-modified:Tue, 29 Mar 2016 12:27:11 GMT
             throws IOException
     {
         // Implementation note: we cache the value in the request
-        String path[] = getAttribute( "request.path" );
+        String path[] = getAttribute( AttributeKey.PATH );
         if( path == null ) {
-            path = getURI().getPath().split( "/" );
-            setAttribute( "request.path", path );
+            path = getPathSegments().toArray();
+            setAttribute( AttributeKey.PATH, path );
         }
         return path;
     }
 
+    /**
+     * The segments of the request's path. Unlike {@link #getPath()} this does not copy the segments so is the cheaper
+     * way to examine a few of them.
+     *
+     * @return
+     */
+    default PathSegments getPathSegments()
+    {
+        PathSegments p = getAttribute( AttributeKey.PATH_SEGMENTS );
+        if( p == null ) {
+            p = PathSegments.parse( getHttpRequest().getRequestLine().getUri() );
+            setAttribute( AttributeKey.PATH_SEGMENTS, p );
+        }
+        return p;
+    }
+
     /**
      * Return a path element.
      * <p>
@@ -563,8 +1301,63 @@ last-modified:Tue, 29 Mar 2016 12:27:11 GMT
     default String getPath( int idx )
             throws IOException
     {
-        String path[] = getPath();
-        return path == null || path.length <= idx ? null : path[idx];
+        return getPathSegments().get( idx );
+    }
+
+    /**
+     * The parameters captured from the path when the handler was registered with a template like
+     * {@code /users/{id}/orders/{oid}}
+     *
+     * @return parameters or null if none were captured
+     */
+    default PathParams getPathParams()
+    {
+        return getAttribute( PathParams.ATTRIBUTE );
+    }
+
+    /**
+     * Return a path parameter
+     *
+     * @param n parameter name, e.g. "id" for the template {@code /users/{id}}
+     *
+     * @return decoded value or null if not present
+     */
+    default String getPathParam( String n )
+    {
+        PathParams p = getPathParams();
+        return p == null ? null : p.get( n );
+    }
+
+    /**
+     * Return a path parameter as an int
+     *
+     * @param n parameter name
+     * @param d value to return if not present
+     *
+     * @return
+     *
+     * @throws NumberFormatException if the value is not an integer
+     */
+    default int getPathParamInt( String n, int d )
+    {
+        PathParams p = getPathParams();
+        return p == null ? d : p.getInt( n, d );
+    }
+
+    /**
+     * Return a path parameter as a long
+     *
+     * @param n parameter name
+     * @param d value to return if not present
+     *
+     * @return
+     *
+     * @throws NumberFormatException if the value is not an integer
+     */
+    default long getPathParamLong( String n, long d )
+    {
+        PathParams p = getPathParams();
+        return p == null ? d : p.getLong( n, d );
     }
 
     /**
@@ -577,7 +1370,6 @@ last-modified:Tue, 29 Mar 2016 12:27:11 GMT
     default int getPathLength()
             throws IOException
     {
-        String path[] = getPath();
-        return path == null ? 0 : path.length;
+        return getPathSegments().size();
     }
 }
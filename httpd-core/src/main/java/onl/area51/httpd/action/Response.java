@@ -15,17 +15,17 @@
  */
 package onl.area51.httpd.action;
 
-import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import onl.area51.httpd.util.BufferPool;
+import onl.area51.httpd.util.Utf8Writer;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 
 /**
  *
@@ -73,6 +73,22 @@ public interface Response
         return write( String.valueOf( v ) );
     }
 
+    /**
+     * Write content that is already UTF-8 encoded, e.g. a fragment rendered once and reused, avoiding it being decoded
+     * and encoded again.
+     *
+     * @param b UTF-8 encoded content
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    default Response raw( byte[] b )
+            throws IOException
+    {
+        return write( new String( b, StandardCharsets.UTF_8 ) );
+    }
+
     default Response copy( InputStream is )
             throws IOException
     {
@@ -298,235 +314,53 @@ public interface Response
     HttpEntity getEntity()
             throws IOException;
 
+    /**
+     * Discard this response without using it's entity, releasing anything it holds
+     */
+    default void discard()
+    {
+    }
+
     Response setContentType( ContentType contentType );
 
     static Response create( Request request )
     {
-        class State
-        {
-
-            private final String tag;
-            private final boolean disableMini;
-            private boolean body;
-
-            public State( String tag, boolean disableMini )
-            {
-                this.tag = tag;
-                this.disableMini = disableMini;
-            }
-
-            @Override
-            public String toString()
-            {
-                return tag;
-            }
-
-        }
-
-        CharArrayWriter writer = new CharArrayWriter();
-
-        return new Response()
+        Utf8Writer writer = new Utf8Writer( BufferPool.getDefault() );
+        return new WriterResponse( request, writer )
         {
-            private ContentType contentType = ContentType.TEXT_HTML;
-
-            private Deque<State> deque = new ArrayDeque<>();
-            private State state;
-
-            @Override
-            public Response exec( Action a )
-                    throws IOException,
-                           HttpException
-            {
-                if( a != null ) {
-                    // Ensure we have finished the current tag
-                    startBody();
-
-                    // Now preserve the stack & start a new one.
-                    // This means one action cannot affect the state of this one
-                    final Deque<State> orig = deque;
-                    deque = new ArrayDeque<>();
-                    try {
-                        a.apply( request );
-                    }
-                    finally {
-                        endAll();
-                        deque = orig;
-                    }
-                }
-                return this;
-            }
-
-            @Override
-            public Response setContentType( ContentType contentType )
-            {
-                this.contentType = contentType;
-                return this;
-            }
-
             @Override
             public HttpEntity getEntity()
                     throws IOException
             {
-                while( !deque.isEmpty() ) {
-                    end();
-                }
-                return new StringEntity( writer.toString(), contentType );
-            }
-
-            private void startBody()
-            {
-                if( state != null && !state.body ) {
-                    state.body = true;
-                    writer.append( '>' );
-                }
-            }
-
-            private void tagOnly()
-            {
-                if( state == null || state.body ) {
-                    throw new IllegalStateException( "Not in tag" );
+                super.getEntity();
+                // The engine never sends the entity of a HEAD response so it would never return a pooled buffer
+                if( "HEAD".equals( request.getHttpRequest().getRequestLine().getMethod() ) ) {
+                    return writer.toUnpooledEntity( getContentType() );
                 }
+                return writer.toEntity( getContentType() );
             }
 
             @Override
-            public Response write( CharSequence seq, int s, int e )
-                    throws IOException
-            {
-                startBody();
-                writer.append( seq, s, e );
-                return this;
-            }
-
-            @Override
-            public Response write( char[] v, int s, int l )
-                    throws IOException
+            public void discard()
             {
-                startBody();
-                writer.write( v, s, l );
-                return this;
+                writer.close();
             }
-
-            @Override
-            public Response write( char v )
-                    throws IOException
-            {
-                startBody();
-                writer.write( v );
-                return this;
-            }
-
-            @Override
-            public Response begin( String t, boolean disableMini )
-                    throws IOException
-            {
-                startBody();
-
-                if( state != null ) {
-                    deque.addLast( state );
-                }
-
-                state = new State( t, disableMini );
-
-                writer.append( '<' );
-                writer.write( state.tag );
-                return this;
-            }
-
-            @Override
-            public Response end()
-                    throws IOException
-            {
-                if( state == null ) {
-                    throw new IllegalStateException( "end() called outside of tag" );
-                }
-
-                // elements like script mustn't be minified, i.e. <script/> is invalid must be <script></script>
-                if( state.disableMini ) {
-                    startBody();
-                }
-
-                if( state.body ) {
-                    writer.append( '<' );
-                    writer.append( '/' );
-                    writer.append( state.tag );
-                    writer.append( '>' );
-                }
-                else {
-                    writer.append( '/' );
-                    writer.append( '>' );
-                }
-
-                state = deque.pollLast();
-
-                return this;
-            }
-
-            @Override
-            public Response endAll()
-                    throws IOException
-            {
-                while( !deque.isEmpty() ) {
-                    end();
-                }
-                return this;
-            }
-
-            @Override
-            public Response attr( String n, CharSequence seq )
-                    throws IOException
-            {
-                tagOnly();
-                writer.append( ' ' );
-                writer.append( n );
-                writer.append( '=' );
-                writer.append( '"' );
-                writer.append( seq );
-                writer.append( '"' );
-                return this;
-            }
-
-            @Override
-            public Response attr( String n, CharSequence seq, int s, int e )
-                    throws IOException
-            {
-                tagOnly();
-                writer.append( ' ' );
-                writer.append( n );
-                writer.append( '=' );
-                writer.append( '"' );
-                writer.append( seq, s, e );
-                writer.append( '"' );
-                return this;
-            }
-
-            @Override
-            public Response attr( String n, char[] v )
-                    throws IOException
-            {
-                tagOnly();
-                writer.append( ' ' );
-                writer.append( n );
-                writer.append( '=' );
-                writer.append( '"' );
-                writer.write( v );
-                writer.append( '"' );
-                return this;
-            }
-
-            @Override
-            public Response attr( String n, char[] v, int s, int l )
-                    throws IOException
-            {
-                tagOnly();
-                writer.append( ' ' );
-                writer.append( n );
-                writer.append( '=' );
-                writer.append( '"' );
-                writer.write( v, s, l );
-                writer.append( '"' );
-                return this;
-            }
-
         };
     }
+
+    /**
+     * A response which writes straight to a writer rather than being buffered until the action completes.
+     * <p>
+     * As the content has already been written {@link #getEntity()} returns null, and {@link #setContentType(org.apache.http.entity.ContentType)}
+     * has no effect.
+     *
+     * @param request
+     * @param writer
+     *
+     * @return
+     */
+    static Response create( Request request, Writer writer )
+    {
+        return new WriterResponse( request, writer );
+    }
 }
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import onl.area51.httpd.util.Utf8Writer;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Coalesces identical concurrent requests so an expensive action runs once rather than once per request.
+ * <p>
+ * {@link #wrap(onl.area51.httpd.action.Action, onl.area51.httpd.action.HttpFunction)} returns an action where the first
+ * request for a key runs the action and any others with the same key arriving while it runs wait for it, then receive a
+ * copy of it's status, headers and body. Nothing is kept once the action completes, so this complements rather than
+ * replaces {@link onl.area51.httpd.ResponseCache}.
+ * <p>
+ * A waiting request runs the action itself if the first one fails, takes longer than the timeout or produces a response that
+ * cannot be shared: one that sets a cookie, is marked private or no-store, varies by request headers the key does not
+ * include, or has a body that is streamed, of unknown length or larger than the size limit. Only the headers the wrapped
+ * action set are copied to the waiters.
+ * <p>
+ * What the action writes to {@link Request#getResponse()} is captured and then written to each request's own response
+ * once the action has finished, so later steps of the chain see the same as if the action had run unwrapped.
+ *
+ * @author peter
+ */
+public class SingleFlight
+{
+
+    private final long timeoutNanos;
+    private final int maxSize;
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    /**
+     *
+     * @param timeout how long a request waits for the one in flight
+     * @param unit    unit of timeout
+     * @param maxSize largest body to share
+     */
+    public SingleFlight( long timeout, TimeUnit unit, int maxSize )
+    {
+        if( timeout < 0 || maxSize < 0 ) {
+            throw new IllegalArgumentException( "Invalid timeout or size" );
+        }
+        this.timeoutNanos = unit.toNanos( timeout );
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Share bodies up to 1Mb
+     *
+     * @param timeout
+     * @param unit
+     */
+    public SingleFlight( long timeout, TimeUnit unit )
+    {
+        this( timeout, unit, 1 << 20 );
+    }
+
+    /**
+     * A key of the method and URI for GET and HEAD requests, otherwise null so other methods are never coalesced.
+     * Requests with credentials or cookies are also never coalesced as their response may be personal.
+     *
+     * @return
+     */
+    public static HttpFunction<Request, Object> byUri()
+    {
+        return r -> {
+            HttpRequest req = r.getHttpRequest();
+            String method = req.getRequestLine().getMethod();
+            if( !("GET".equals( method ) || "HEAD".equals( method ))
+                || req.containsHeader( "Authorization" ) || req.containsHeader( "Cookie" ) ) {
+                return null;
+            }
+            return method + " " + r.getURI();
+        };
+    }
+
+    /**
+     * Wrap an action so concurrent requests with the same key share one execution
+     *
+     * @param action action to wrap
+     * @param key    the key for a request which must implement equals and hashCode. The action is run as normal when
+     *               this returns null.
+     *
+     * @return
+     */
+    public Action wrap( Action action, HttpFunction<Request, ?> key )
+    {
+        Objects.requireNonNull( action );
+        Objects.requireNonNull( key );
+        ConcurrentMap<Object, Flight> flights = new ConcurrentHashMap<>();
+        return r -> {
+            Object k = key.apply( r );
+            if( k == null ) {
+                action.apply( r );
+                return;
+            }
+
+            Flight flight = new Flight();
+            Flight existing = flights.putIfAbsent( k, flight );
+            if( existing == null ) {
+                executions.increment();
+                try {
+                    flight.result = run( action, r );
+                }
+                finally {
+                    flights.remove( k, flight );
+                    flight.done.countDown();
+                }
+            }
+            else {
+                await( existing );
+                if( existing.result != null ) {
+                    coalesced.increment();
+                    existing.result.send( r );
+                }
+                else {
+                    fallbacks.increment();
+                    action.apply( r );
+                }
+            }
+        };
+    }
+
+    private void await( Flight flight )
+            throws IOException
+    {
+        try {
+            if( !flight.done.await( timeoutNanos, TimeUnit.NANOSECONDS ) ) {
+                timeouts.increment();
+            }
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Run the action and buffer it's response
+     *
+     * @return the result or null if it cannot be shared
+     */
+    private Result run( Action action, Request r )
+            throws HttpException,
+                   IOException
+    {
+        // Headers set by earlier steps are set on the waiters by those steps so are not shared
+        HttpResponse resp = r.getHttpResponse();
+        List<Header> before = Arrays.asList( resp.getAllHeaders() );
+
+        // Capture what the action writes so it can be shared, it's only written to r once the action has finished
+        Utf8Writer writer = new Utf8Writer();
+        Request capture = r.capture( writer );
+        action.apply( capture );
+
+        Written written = null;
+        if( capture.isResponsePresent() ) {
+            WriterResponse response = (WriterResponse) capture.getResponse();
+            response.getEntity();
+            written = new Written( writer.toByteArray(), response.getContentType() );
+        }
+
+        HttpEntity entity = resp.getEntity();
+        if( !isShareable( resp ) || (written != null && written.content.length > maxSize) ) {
+            Written.send( written, r );
+            return null;
+        }
+
+        byte[] body = null;
+        if( entity != null ) {
+            long length = entity.getContentLength();
+            if( entity.isStreaming() || length < 0 || length > maxSize ) {
+                Written.send( written, r );
+                return null;
+            }
+            body = EntityUtils.toByteArray( entity );
+        }
+
+        List<Header> headers = new ArrayList<>();
+        for( Header h: resp.getAllHeaders() ) {
+            // Set or replaced by the action, Header's don't implement equals so this is by identity
+            if( !before.contains( h ) ) {
+                headers.add( h );
+            }
+        }
+
+        Result result = new Result( resp.getStatusLine(), headers.toArray( new Header[headers.size()] ), entity, body, written );
+        if( entity != null ) {
+            // The original was consumed reading it
+            resp.setEntity( result.entity() );
+        }
+        Written.send( written, r );
+        return result;
+    }
+
+    /**
+     * Can a response be given to other clients. Not if it sets a cookie, is marked as private or depends on request
+     * headers, e.g. Accept-Language, which differ between requests with the same key.
+     */
+    private static boolean isShareable( HttpResponse resp )
+    {
+        if( resp.containsHeader( "Set-Cookie" ) || resp.containsHeader( "Set-Cookie2" ) || resp.containsHeader( "Vary" ) ) {
+            return false;
+        }
+        for( Header h: resp.getHeaders( "Cache-Control" ) ) {
+            for( HeaderElement e: h.getElements() ) {
+                String name = e.getName().toLowerCase( Locale.ROOT );
+                if( "private".equals( name ) || "no-store".equals( name ) ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of times a wrapped action has run for a key
+     *
+     * @return
+     */
+    public long getExecutions()
+    {
+        return executions.sum();
+    }
+
+    /**
+     * Number of requests served from another's execution
+     *
+     * @return
+     */
+    public long getCoalesced()
+    {
+        return coalesced.sum();
+    }
+
+    /**
+     * Number of requests that gave up waiting
+     *
+     * @return
+     */
+    public long getTimeouts()
+    {
+        return timeouts.sum();
+    }
+
+    /**
+     * Number of requests that waited but then ran the action themselves, including those that timed out
+     *
+     * @return
+     */
+    public long getFallbacks()
+    {
+        return fallbacks.sum();
+    }
+
+    private static final class Flight
+    {
+
+        private final CountDownLatch done = new CountDownLatch( 1 );
+        private volatile Result result;
+    }
+
+    private static final class Result
+    {
+
+        private final StatusLine status;
+        private final Header[] headers;
+        private final Header contentType;
+        private final Header contentEncoding;
+        private final byte[] body;
+        private final Written written;
+
+        Result( StatusLine status, Header[] headers, HttpEntity entity, byte[] body, Written written )
+        {
+            this.status = status;
+            this.headers = headers;
+            this.contentType = entity == null ? null : entity.getContentType();
+            this.contentEncoding = entity == null ? null : entity.getContentEncoding();
+            this.body = body;
+            this.written = written;
+        }
+
+        HttpEntity entity()
+        {
+            ByteArrayEntity entity = new ByteArrayEntity( body );
+            entity.setContentType( contentType );
+            entity.setContentEncoding( contentEncoding );
+            return entity;
+        }
+
+        void send( Request r )
+                throws IOException
+        {
+            HttpResponse resp = r.getHttpResponse();
+            resp.setStatusLine( status );
+            // Replace rather than add to anything the waiter already has, keeping multiple values of a header
+            for( Header h: headers ) {
+                resp.removeHeaders( h.getName() );
+            }
+            for( Header h: headers ) {
+                resp.addHeader( h );
+            }
+            if( body != null ) {
+                resp.setEntity( entity() );
+            }
+            Written.send( written, r );
+        }
+    }
+
+    /**
+     * What an action wrote to it's {@link Request#getResponse()}, UTF-8 encoded
+     */
+    private static final class Written
+    {
+
+        private final byte[] content;
+        private final ContentType contentType;
+
+        Written( byte[] content, ContentType contentType )
+        {
+            this.content = content;
+            this.contentType = contentType;
+        }
+
+        /**
+         * Write to a request's response as the action would have
+         *
+         * @param written what was written, may be null
+         * @param r       request
+         */
+        static void send( Written written, Request r )
+                throws IOException
+        {
+            if( written != null ) {
+                r.getResponse().setContentType( written.contentType );
+                r.getResponse().raw( written.content );
+            }
+        }
+    }
+}
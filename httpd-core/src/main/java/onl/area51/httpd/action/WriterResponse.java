@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import onl.area51.httpd.util.Utf8Writer;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.entity.ContentType;
+
+/**
+ * A {@link Response} that writes to a {@link Writer}.
+ * <p>
+ * {@link #getEntity()} closes any open elements and flushes the writer, returning null as the content has already gone
+ * to the writer.
+ *
+ * @author peter
+ */
+class WriterResponse
+        implements Response
+{
+
+    private static class State
+    {
+
+        private final String tag;
+        private final boolean disableMini;
+        private boolean body;
+
+        public State( String tag, boolean disableMini )
+        {
+            this.tag = tag;
+            this.disableMini = disableMini;
+        }
+
+        @Override
+        public String toString()
+        {
+            return tag;
+        }
+
+    }
+
+    private final Request request;
+    private final Writer writer;
+    private ContentType contentType = ContentType.TEXT_HTML;
+
+    private Deque<State> deque = new ArrayDeque<>();
+    private State state;
+
+    WriterResponse( Request request, Writer writer )
+    {
+        this.request = request;
+        this.writer = writer;
+    }
+
+    @Override
+    public Response exec( Action a )
+            throws IOException,
+                   HttpException
+    {
+        if( a != null ) {
+            // Ensure we have finished the current tag
+            startBody();
+
+            // Now preserve the stack & start a new one.
+            // This means one action cannot affect the state of this one
+            final Deque<State> orig = deque;
+            deque = new ArrayDeque<>();
+            try {
+                a.apply( request );
+            }
+            finally {
+                endAll();
+                deque = orig;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public Response setContentType( ContentType contentType )
+    {
+        this.contentType = contentType;
+        return this;
+    }
+
+    @Override
+    public HttpEntity getEntity()
+            throws IOException
+    {
+        while( !deque.isEmpty() ) {
+            end();
+        }
+        writer.flush();
+        return null;
+    }
+
+    /**
+     * The content type set by {@link #setContentType(org.apache.http.entity.ContentType)}
+     *
+     * @return
+     */
+    ContentType getContentType()
+    {
+        return contentType;
+    }
+
+    private void startBody()
+            throws IOException
+    {
+        if( state != null && !state.body ) {
+            state.body = true;
+            writer.append( '>' );
+        }
+    }
+
+    private void tagOnly()
+    {
+        if( state == null || state.body ) {
+            throw new IllegalStateException( "Not in tag" );
+        }
+    }
+
+    @Override
+    public Response write( CharSequence seq, int s, int e )
+            throws IOException
+    {
+        startBody();
+        writer.append( seq, s, e );
+        return this;
+    }
+
+    @Override
+    public Response write( char[] v, int s, int l )
+            throws IOException
+    {
+        startBody();
+        writer.write( v, s, l );
+        return this;
+    }
+
+    @Override
+    public Response raw( byte[] b )
+            throws IOException
+    {
+        if( writer instanceof Utf8Writer ) {
+            startBody();
+            ((Utf8Writer) writer).writeUtf8( b, 0, b.length );
+            return this;
+        }
+        return Response.super.raw( b );
+    }
+
+    @Override
+    public Response write( char v )
+            throws IOException
+    {
+        startBody();
+        writer.write( v );
+        return this;
+    }
+
+    @Override
+    public Response begin( String t, boolean disableMini )
+            throws IOException
+    {
+        startBody();
+
+        if( state != null ) {
+            deque.addLast( state );
+        }
+
+        state = new State( t, disableMini );
+
+        writer.append( '<' );
+        writer.write( state.tag );
+        return this;
+    }
+
+    @Override
+    public Response end()
+            throws IOException
+    {
+        if( state == null ) {
+            throw new IllegalStateException( "end() called outside of tag" );
+        }
+
+        // elements like script mustn't be minified, i.e. <script/> is invalid must be <script></script>
+        if( state.disableMini ) {
+            startBody();
+        }
+
+        if( state.body ) {
+            writer.append( '<' );
+            writer.append( '/' );
+            writer.append( state.tag );
+            writer.append( '>' );
+        }
+        else {
+            writer.append( '/' );
+            writer.append( '>' );
+        }
+
+        state = deque.pollLast();
+
+        return this;
+    }
+
+    @Override
+    public Response endAll()
+            throws IOException
+    {
+        while( !deque.isEmpty() ) {
+            end();
+        }
+        return this;
+    }
+
+    @Override
+    public Response attr( String n, CharSequence seq )
+            throws IOException
+    {
+        tagOnly();
+        writer.append( ' ' );
+        writer.append( n );
+        writer.append( '=' );
+        writer.append( '"' );
+        writer.append( seq );
+        writer.append( '"' );
+        return this;
+    }
+
+    @Override
+    public Response attr( String n, CharSequence seq, int s, int e )
+            throws IOException
+    {
+        tagOnly();
+        writer.append( ' ' );
+        writer.append( n );
+        writer.append( '=' );
+        writer.append( '"' );
+        writer.append( seq, s, e );
+        writer.append( '"' );
+        return this;
+    }
+
+    @Override
+    public Response attr( String n, char[] v )
+            throws IOException
+    {
+        tagOnly();
+        writer.append( ' ' );
+        writer.append( n );
+        writer.append( '=' );
+        writer.append( '"' );
+        writer.write( v );
+        writer.append( '"' );
+        return this;
+    }
+
+    @Override
+    public Response attr( String n, char[] v, int s, int l )
+            throws IOException
+    {
+        tagOnly();
+        writer.append( ' ' );
+        writer.append( n );
+        writer.append( '=' );
+        writer.append( '"' );
+        writer.write( v, s, l );
+        writer.append( '"' );
+        return this;
+    }
+}
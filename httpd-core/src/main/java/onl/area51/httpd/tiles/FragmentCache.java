@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.tiles;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import onl.area51.httpd.action.Action;
+import onl.area51.httpd.action.HttpFunction;
+import onl.area51.httpd.action.Request;
+import onl.area51.httpd.util.Utf8Writer;
+import org.apache.http.HttpException;
+
+/**
+ * Caches the output of tiles whose content depends only on a few things about the request, e.g. a menu that depends on
+ * the user's role, so they are rendered once per key rather than on every request.
+ * <p>
+ * {@link #cache(onl.area51.httpd.action.Action, onl.area51.httpd.action.HttpFunction, long, java.util.concurrent.TimeUnit)}
+ * wraps an action so what it writes, as if run with {@link onl.area51.httpd.action.Response#exec(onl.area51.httpd.action.Action)},
+ * is captured and then replayed to later requests with the same key until it expires. Only the output is cached, anything
+ * else the action does such as setting headers only happens when it is rendered.
+ * <p>
+ * The cache is bounded by both the number of fragments and their total size, evicting the least recently used.
+ *
+ * @author peter
+ */
+public class FragmentCache
+{
+
+    private static volatile FragmentCache defaultCache;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Map<Key, Fragment> fragments = new LinkedHashMap<>( 16, 0.75f, true );
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    /**
+     *
+     * @param maxEntries maximum number of fragments
+     * @param maxBytes   maximum total size of the fragments. Larger fragments are never cached.
+     */
+    public FragmentCache( int maxEntries, long maxBytes )
+    {
+        if( maxEntries < 1 || maxBytes < 1 ) {
+            throw new IllegalArgumentException( "Invalid cache size" );
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The shared cache. Unless set this holds up to 1024 fragments or 8Mb.
+     *
+     * @return
+     */
+    public static FragmentCache getDefault()
+    {
+        FragmentCache c = defaultCache;
+        if( c == null ) {
+            synchronized( FragmentCache.class ) {
+                c = defaultCache;
+                if( c == null ) {
+                    c = new FragmentCache( 1024, 8L << 20 );
+                    defaultCache = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    public static void setDefault( FragmentCache cache )
+    {
+        defaultCache = cache;
+    }
+
+    /**
+     * Wrap an action so it's output is cached
+     *
+     * @param action action to cache
+     * @param key    the key for a request which must implement equals and hashCode. The action is run uncached when
+     *               this returns null.
+     * @param ttl    how long a fragment is kept
+     * @param unit   unit of ttl
+     *
+     * @return
+     */
+    public Action cache( Action action, HttpFunction<Request, ?> key, long ttl, TimeUnit unit )
+    {
+        Objects.requireNonNull( action );
+        Objects.requireNonNull( key );
+        long ttlNanos = unit.toNanos( ttl );
+        return r -> {
+            Object k = key.apply( r );
+            if( k == null ) {
+                r.getResponse().exec( action );
+                return;
+            }
+
+            Key cacheKey = new Key( action, k );
+            byte[] content = get( cacheKey );
+            if( content == null ) {
+                content = render( action, r );
+                put( cacheKey, new Fragment( content, System.nanoTime() + ttlNanos ) );
+            }
+            r.getResponse().raw( content );
+        };
+    }
+
+    /**
+     * Run the action capturing it's output
+     */
+    private static byte[] render( Action action, Request r )
+            throws HttpException,
+                   IOException
+    {
+        Utf8Writer writer = new Utf8Writer();
+        Request capture = r.capture( writer );
+        capture.getResponse()
+                .exec( action )
+                .getEntity();
+        return writer.toByteArray();
+    }
+
+    private synchronized byte[] get( Key key )
+    {
+        Fragment f = fragments.get( key );
+        if( f != null ) {
+            if( f.expires - System.nanoTime() > 0 ) {
+                hits++;
+                return f.content;
+            }
+            remove( key );
+        }
+        misses++;
+        return null;
+    }
+
+    private synchronized void put( Key key, Fragment f )
+    {
+        if( f.content.length > maxBytes ) {
+            return;
+        }
+        Fragment old = fragments.put( key, f );
+        if( old != null ) {
+            bytes -= old.content.length;
+        }
+        bytes += f.content.length;
+
+        Iterator<Fragment> it = fragments.values().iterator();
+        while( it.hasNext() && (fragments.size() > maxEntries || bytes > maxBytes) ) {
+            bytes -= it.next().content.length;
+            it.remove();
+        }
+    }
+
+    private void remove( Key key )
+    {
+        Fragment f = fragments.remove( key );
+        if( f != null ) {
+            bytes -= f.content.length;
+        }
+    }
+
+    /**
+     * Remove all fragments
+     */
+    public synchronized void clear()
+    {
+        fragments.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size()
+    {
+        return fragments.size();
+    }
+
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    private static final class Key
+    {
+
+        private final Action action;
+        private final Object key;
+
+        Key( Action action, Object key )
+        {
+            this.action = action;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * System.identityHashCode( action ) + key.hashCode();
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            if( !(obj instanceof Key) ) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return action == k.action && key.equals( k.key );
+        }
+    }
+
+    private static final class Fragment
+    {
+
+        private final byte[] content;
+        private final long expires;
+
+        Fragment( byte[] content, long expires )
+        {
+            this.content = content;
+            this.expires = expires;
+        }
+    }
+}
@@ -21,6 +21,8 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.util.function.Supplier;
 import onl.area51.httpd.action.Action;
+import onl.area51.httpd.util.BufferPool;
+import onl.area51.httpd.util.Utf8Writer;
 
 /**
  *
@@ -187,10 +189,11 @@ public interface HtmlBuilder<T>
 
     static HtmlBuilder<Action> actionBuilder()
     {
-        StringWriter w = new StringWriter();
+        Utf8Writer w = new Utf8Writer( BufferPool.getDefault() );
         return builder( w, () -> {
-                    String s = w.toString();
-                    return r -> r.getResponse().write( s );
+                    byte[] b = w.toByteArray();
+                    w.close();
+                    return r -> r.getResponse().raw( b );
                 } );
     }
 
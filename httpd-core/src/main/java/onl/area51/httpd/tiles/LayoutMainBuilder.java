@@ -110,27 +110,22 @@ public interface LayoutMainBuilder
             @Override
             public Action build()
             {
-                return request -> {
-                    request.getResponse()
-                            .begin( "html" )
-                            // Page header
-                            .begin( "head" )
-                            .begin( "meta" )
-                            .attr( "http-equiv", "Content-Type" )
-                            .attr( "content", "text/html; charset=UTF-8" )
-                            .end()
-                            // Title
-                            .begin( "title" )
-                            .write( titleTransform.apply( request.getString( "pageTitle", title ) ) )
-                            .end()
-                            // Optional extras in header
-                            .exec( header )
-                            .end()
-                            .begin( "body" )
-                            .exec( body )
-                            .end()
-                            .end();
-                };
+                // The markup Response would generate, only the title, header and body vary per request.
+                // head and body are opened on the response so they close anything their holes leave open
+                return Template.builder()
+                        .write( "<html>" )
+                        .begin( "head" )
+                        .write( "<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\"/><title>" )
+                        .add( r -> r.getResponse().write( titleTransform.apply( r.getString( "pageTitle", title ) ) ) )
+                        .write( "</title>" )
+                        // Optional extras in header
+                        .exec( header )
+                        .end()
+                        .begin( "body" )
+                        .exec( body )
+                        .end()
+                        .write( "</html>" )
+                        .build();
             }
         };
     }
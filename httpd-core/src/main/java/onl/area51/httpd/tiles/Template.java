@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.tiles;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import onl.area51.httpd.action.Action;
+import onl.area51.httpd.action.Request;
+import org.apache.http.HttpException;
+
+/**
+ * A tile compiled from constant markup and holes filled per request.
+ * <p>
+ * Adjacent constant markup is merged and encoded once when the template is built, so rendering it is a few array copies
+ * with {@link onl.area51.httpd.action.Response#raw(byte[])} rather than a sequence of begin/attr/end calls. The markup
+ * is written as is so must be the same as {@link onl.area51.httpd.action.Response} would generate, e.g. an empty element
+ * as {@code <br/>}.
+ * <p>
+ * An element containing an exec hole should be opened with {@link Builder#begin(java.lang.String)} rather than written
+ * as markup. It is then open on the response while the hole runs so any elements the hole leaves open are closed with it.
+ *
+ * @author peter
+ */
+public final class Template
+        implements Action
+{
+
+    private static final Object END = new Object();
+
+    private final Object[] parts;
+
+    private Template( Object[] parts )
+    {
+        this.parts = parts;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    @Override
+    public void apply( Request request )
+            throws HttpException,
+                   IOException
+    {
+        for( Object part: parts ) {
+            if( part instanceof byte[] ) {
+                request.getResponse().raw( (byte[]) part );
+            }
+            else if( part instanceof Exec ) {
+                request.getResponse().exec( ((Exec) part).action );
+            }
+            else if( part instanceof Begin ) {
+                request.getResponse().begin( ((Begin) part).tag );
+            }
+            else if( part == END ) {
+                request.getResponse().end();
+            }
+            else {
+                ((Action) part).apply( request );
+            }
+        }
+    }
+
+    /**
+     * A hole run with {@link onl.area51.httpd.action.Response#exec(onl.area51.httpd.action.Action)}
+     */
+    private static class Exec
+    {
+
+        private final Action action;
+
+        Exec( Action action )
+        {
+            this.action = action;
+        }
+    }
+
+    /**
+     * An element opened with {@link onl.area51.httpd.action.Response#begin(java.lang.String)}
+     */
+    private static class Begin
+    {
+
+        private final String tag;
+
+        Begin( String tag )
+        {
+            this.tag = tag;
+        }
+    }
+
+    public static class Builder
+    {
+
+        private final List<Object> parts = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        private int depth;
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Append constant markup
+         *
+         * @param s
+         *
+         * @return
+         */
+        public Builder write( CharSequence s )
+        {
+            text.append( s );
+            return this;
+        }
+
+        /**
+         * Append a hole whose action writes inline, e.g. the text of an element
+         *
+         * @param action
+         *
+         * @return
+         */
+        public Builder add( Action action )
+        {
+            if( action != null ) {
+                flush();
+                parts.add( action );
+            }
+            return this;
+        }
+
+        /**
+         * Append a hole whose action is run with {@link onl.area51.httpd.action.Response#exec(onl.area51.httpd.action.Action)}
+         * so any elements it leaves open within the enclosing {@link #begin(java.lang.String)} are closed.
+         *
+         * @param action
+         *
+         * @return
+         */
+        public Builder exec( Action action )
+        {
+            if( action != null ) {
+                flush();
+                parts.add( new Exec( action ) );
+            }
+            return this;
+        }
+
+        /**
+         * Open an element on the response rather than as markup, so an exec hole within it runs inside the element
+         *
+         * @param tag
+         *
+         * @return
+         */
+        public Builder begin( String tag )
+        {
+            flush();
+            parts.add( new Begin( tag ) );
+            depth++;
+            return this;
+        }
+
+        /**
+         * Close the element opened by {@link #begin(java.lang.String)}, along with anything a hole left open within it
+         *
+         * @return
+         */
+        public Builder end()
+        {
+            if( depth == 0 ) {
+                throw new IllegalStateException( "end() called outside of begin()" );
+            }
+            flush();
+            parts.add( END );
+            depth--;
+            return this;
+        }
+
+        private void flush()
+        {
+            if( text.length() > 0 ) {
+                parts.add( text.toString().getBytes( StandardCharsets.UTF_8 ) );
+                text.setLength( 0 );
+            }
+        }
+
+        public Template build()
+        {
+            if( depth > 0 ) {
+                throw new IllegalStateException( "Element not ended" );
+            }
+            flush();
+            return new Template( parts.toArray() );
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte arrays used to build response bodies, so a busy server is not constantly allocating and then discarding
+ * buffers that have grown to the size of a page.
+ * <p>
+ * Buffers come in power of two size classes from 1Kb up to a maximum, larger requests are simply allocated. The pool is
+ * split into stripes chosen by the calling thread to limit contention. Stripes are used rather than thread locals as with
+ * virtual threads a thread local buffer would almost never be reused.
+ *
+ * @author peter
+ */
+public class BufferPool
+{
+
+    private static final int MIN_SHIFT = 10;
+
+    private static volatile BufferPool defaultPool;
+
+    private final int maxShift;
+    private final int maxPerClass;
+    private final long maxRetained;
+    private final Stripe[] stripes;
+    private final AtomicLong retained = new AtomicLong();
+
+    /**
+     *
+     * @param maxBufferSize largest buffer to pool, rounded up to a power of two
+     * @param maxPerClass   maximum number of idle buffers of each size per stripe
+     * @param maxRetained   maximum total size of idle buffers held by the pool
+     */
+    public BufferPool( int maxBufferSize, int maxPerClass, long maxRetained )
+    {
+        if( maxBufferSize < 1 << MIN_SHIFT || maxBufferSize > 1 << 30 || maxPerClass < 1 || maxRetained < 0 ) {
+            throw new IllegalArgumentException( "Invalid pool size" );
+        }
+        this.maxShift = shift( maxBufferSize );
+        this.maxPerClass = maxPerClass;
+        this.maxRetained = maxRetained;
+
+        int n = Integer.highestOneBit( Math.max( 1, Runtime.getRuntime().availableProcessors() ) - 1 ) << 1;
+        stripes = new Stripe[Math.max( 1, n )];
+        for( int i = 0; i < stripes.length; i++ ) {
+            stripes[i] = new Stripe( maxShift - MIN_SHIFT + 1 );
+        }
+    }
+
+    /**
+     * The pool used for response bodies. Unless set this pools buffers up to 1Mb, retaining up to 16Mb.
+     *
+     * @return
+     */
+    public static BufferPool getDefault()
+    {
+        BufferPool p = defaultPool;
+        if( p == null ) {
+            synchronized( BufferPool.class ) {
+                p = defaultPool;
+                if( p == null ) {
+                    p = new BufferPool( 1 << 20, 8, 16L << 20 );
+                    defaultPool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    public static void setDefault( BufferPool pool )
+    {
+        defaultPool = pool;
+    }
+
+    /**
+     * The size class of a buffer, i.e. log2 of the smallest power of two that holds it
+     */
+    private static int shift( int size )
+    {
+        return size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros( size - 1 );
+    }
+
+    private Stripe stripe()
+    {
+        return stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+    }
+
+    /**
+     * Get a buffer
+     *
+     * @param size minimum size required
+     *
+     * @return buffer of at least size bytes, it's content is undefined
+     */
+    public byte[] acquire( int size )
+    {
+        int shift = shift( size );
+        if( shift > maxShift ) {
+            return new byte[size];
+        }
+
+        Stripe stripe = stripe();
+        byte[] b;
+        synchronized( stripe ) {
+            b = stripe.free[shift - MIN_SHIFT].pollLast();
+            if( b == null ) {
+                stripe.misses++;
+            }
+            else {
+                stripe.hits++;
+            }
+        }
+        if( b == null ) {
+            return new byte[1 << shift];
+        }
+        retained.addAndGet( -b.length );
+        return b;
+    }
+
+    /**
+     * Return a buffer to the pool. The caller must not use it afterwards.
+     *
+     * @param b buffer, ignored if not from {@link #acquire(int)}
+     */
+    public void release( byte[] b )
+    {
+        if( b == null ) {
+            return;
+        }
+        int len = b.length;
+        if( Integer.bitCount( len ) != 1 || len < 1 << MIN_SHIFT || len > 1 << maxShift ) {
+            return;
+        }
+        if( retained.addAndGet( len ) > maxRetained ) {
+            retained.addAndGet( -len );
+            return;
+        }
+
+        Stripe stripe = stripe();
+        synchronized( stripe ) {
+            ArrayDeque<byte[]> q = stripe.free[shift( len ) - MIN_SHIFT];
+            if( q.size() < maxPerClass ) {
+                q.addLast( b );
+                return;
+            }
+        }
+        retained.addAndGet( -len );
+    }
+
+    /**
+     * Number of requests satisfied from the pool
+     *
+     * @return
+     */
+    public long getHits()
+    {
+        long n = 0;
+        for( Stripe s: stripes ) {
+            synchronized( s ) {
+                n += s.hits;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Number of poolable requests that had to allocate a new buffer
+     *
+     * @return
+     */
+    public long getMisses()
+    {
+        long n = 0;
+        for( Stripe s: stripes ) {
+            synchronized( s ) {
+                n += s.misses;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Total size of the idle buffers held by the pool
+     *
+     * @return
+     */
+    public long getRetainedBytes()
+    {
+        return retained.get();
+    }
+
+    /**
+     * Release all idle buffers
+     */
+    public void clear()
+    {
+        for( Stripe s: stripes ) {
+            synchronized( s ) {
+                for( ArrayDeque<byte[]> q: s.free ) {
+                    byte[] b;
+                    while( (b = q.pollLast()) != null ) {
+                        retained.addAndGet( -b.length );
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Stripe
+    {
+
+        private final ArrayDeque<byte[]>[] free;
+        private long hits;
+        private long misses;
+
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        Stripe( int classes )
+        {
+            free = new ArrayDeque[classes];
+            for( int i = 0; i < classes; i++ ) {
+                free[i] = new ArrayDeque<>();
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A satisfiable range from a Range request header, as defined in RFC 7233
+ *
+ * @author peter
+ */
+public final class ByteRange
+{
+
+    /**
+     * The most ranges we will honour in one request. More than this and the header is ignored, so the whole entity is sent,
+     * as a request for many small overlapping ranges is usually abuse.
+     */
+    public static final int MAX_RANGES = 16;
+
+    private final long first;
+    private final long last;
+
+    public ByteRange( long first, long last )
+    {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Position of the first byte
+     *
+     * @return
+     */
+    public long getFirst()
+    {
+        return first;
+    }
+
+    /**
+     * Position of the last byte, inclusive
+     *
+     * @return
+     */
+    public long getLast()
+    {
+        return last;
+    }
+
+    public long getLength()
+    {
+        return last - first + 1;
+    }
+
+    /**
+     * The value of a Content-Range header for this range
+     *
+     * @param size size of the complete entity
+     *
+     * @return
+     */
+    public String contentRange( long size )
+    {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+
+    /**
+     * Parse a Range header
+     *
+     * @param header the Range header
+     * @param size   size of the entity
+     *
+     * @return the satisfiable ranges, which will be empty if none are, or null if the header is invalid or should be ignored
+     */
+    public static List<ByteRange> parse( String header, long size )
+    {
+        if( header == null ) {
+            return null;
+        }
+        String h = header.trim();
+        if( !h.regionMatches( true, 0, "bytes=", 0, 6 ) ) {
+            return null;
+        }
+
+        String[] specs = h.substring( 6 ).split( "," );
+        if( specs.length > MAX_RANGES ) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>( specs.length );
+        for( String spec: specs ) {
+            String s = spec.trim();
+            int i = s.indexOf( '-' );
+            if( i < 0 ) {
+                return null;
+            }
+            try {
+                if( i == 0 ) {
+                    // suffix range, the last n bytes
+                    long n = Long.parseLong( s.substring( 1 ) );
+                    if( n > 0 && size > 0 ) {
+                        ranges.add( new ByteRange( Math.max( 0, size - n ), size - 1 ) );
+                    }
+                }
+                else {
+                    long first = Long.parseLong( s.substring( 0, i ) );
+                    long last = i == s.length() - 1 ? Long.MAX_VALUE : Long.parseLong( s.substring( i + 1 ) );
+                    if( first < 0 || last < first ) {
+                        return null;
+                    }
+                    if( first < size ) {
+                        ranges.add( new ByteRange( first, Math.min( last, size - 1 ) ) );
+                    }
+                }
+            }
+            catch( NumberFormatException ex ) {
+                return null;
+            }
+        }
+        return ranges.isEmpty() ? Collections.emptyList() : ranges;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.Args;
+
+/**
+ * A multipart/byteranges entity holding several ranges of a file, used to answer a Range request for more than one range.
+ *
+ * @author peter
+ */
+public class ByteRangesEntity
+        extends AbstractHttpEntity
+{
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Path file;
+    private final ContentType partContentType;
+    private final List<ByteRange> ranges;
+    private final long size;
+    private final String boundary;
+    private final byte[][] headers;
+    private final byte[] trailer;
+    private final long contentLength;
+
+    /**
+     *
+     * @param file            file to send
+     * @param partContentType content type of the file, null for none
+     * @param ranges          ranges to send
+     * @param size            size of the file
+     */
+    @SuppressWarnings("OverridableMethodCallInConstructor")
+    public ByteRangesEntity( Path file, ContentType partContentType, List<ByteRange> ranges, long size )
+    {
+        this.file = Args.notNull( file, "Path" );
+        this.partContentType = partContentType;
+        this.ranges = Args.notEmpty( ranges, "Ranges" );
+        this.size = size;
+
+        boundary = UUID.randomUUID().toString().replace( "-", "" );
+        setContentType( "multipart/byteranges; boundary=" + boundary );
+
+        headers = new byte[ranges.size()][];
+        long len = 0;
+        for( int i = 0; i < headers.length; i++ ) {
+            ByteRange r = ranges.get( i );
+            StringBuilder sb = new StringBuilder( "\r\n--" ).append( boundary ).append( "\r\n" );
+            if( partContentType != null ) {
+                sb.append( "Content-Type: " ).append( partContentType ).append( "\r\n" );
+            }
+            sb.append( "Content-Range: " ).append( r.contentRange( size ) ).append( "\r\n\r\n" );
+            headers[i] = sb.toString().getBytes( StandardCharsets.US_ASCII );
+            len += headers[i].length + r.getLength();
+        }
+        trailer = ("\r\n--" + boundary + "--\r\n").getBytes( StandardCharsets.US_ASCII );
+        contentLength = len + trailer.length;
+    }
+
+    public String getBoundary()
+    {
+        return boundary;
+    }
+
+    @Override
+    public boolean isRepeatable()
+    {
+        return true;
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return contentLength;
+    }
+
+    @Override
+    public InputStream getContent()
+            throws IOException
+    {
+        // Each range is opened only when it is reached
+        return new SequenceInputStream( new Enumeration<InputStream>()
+        {
+            private int i;
+
+            @Override
+            public boolean hasMoreElements()
+            {
+                return i <= headers.length << 1;
+            }
+
+            @Override
+            public InputStream nextElement()
+            {
+                int n = i++;
+                if( n == headers.length << 1 ) {
+                    return new ByteArrayInputStream( trailer );
+                }
+                if( (n & 1) == 0 ) {
+                    return new ByteArrayInputStream( headers[n >> 1] );
+                }
+                ByteRange r = ranges.get( n >> 1 );
+                try {
+                    return new PathEntity( file, partContentType, r.getFirst(), r.getLength() ).getContent();
+                }
+                catch( IOException ex ) {
+                    throw new UncheckedIOException( ex );
+                }
+            }
+        } );
+    }
+
+    @Override
+    public void writeTo( OutputStream outstream )
+            throws IOException
+    {
+        Args.notNull( outstream, "Output stream" );
+        try( InputStream is = getContent() ) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while( (n = is.read( buf )) > -1 ) {
+                outstream.write( buf, 0, n );
+            }
+        }
+        catch( UncheckedIOException ex ) {
+            throw ex.getCause();
+        }
+    }
+
+    @Override
+    public boolean isStreaming()
+    {
+        return false;
+    }
+}
@@ -33,18 +33,28 @@ public class ContentTypeResolver
 
     public static final ContentType PNG = create( "image/png" );
     public static final ContentType JPG = create( "image/jpg" );
+    public static final ContentType GIF = create( "image/gif" );
+    public static final ContentType SVG = create( "image/svg+xml" );
+    public static final ContentType ICO = create( "image/x-icon" );
+    public static final ContentType CSS = create( "text/css", "UTF-8" );
+    public static final ContentType JAVASCRIPT = create( "application/javascript", "UTF-8" );
     private static final Map<String, ContentType> CONTENT_TYPES;
 
     static
     {
         CONTENT_TYPES = new ConcurrentHashMap<>();
+        CONTENT_TYPES.put( ".css", CSS );
+        CONTENT_TYPES.put( ".gif", GIF );
         CONTENT_TYPES.put( ".htm", TEXT_HTML );
         CONTENT_TYPES.put( ".html", TEXT_HTML );
         CONTENT_TYPES.put( ".jpg", JPG );
         CONTENT_TYPES.put( ".jpeg", JPG );
+        CONTENT_TYPES.put( ".ico", ICO );
+        CONTENT_TYPES.put( ".js", JAVASCRIPT );
         CONTENT_TYPES.put( ".json", APPLICATION_JSON );
         CONTENT_TYPES.put( ".log", TEXT_PLAIN );
         CONTENT_TYPES.put( ".png", PNG );
+        CONTENT_TYPES.put( ".svg", SVG );
         CONTENT_TYPES.put( ".text", TEXT_PLAIN );
         CONTENT_TYPES.put( ".txt", TEXT_PLAIN );
         CONTENT_TYPES.put( ".xml", TEXT_XML );
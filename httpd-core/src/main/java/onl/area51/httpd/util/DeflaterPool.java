@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of {@link Deflater}'s for each compression level, as each holds a sizeable native buffer which is expensive to
+ * create and only released by {@link Deflater#end()}.
+ *
+ * @author peter
+ */
+class DeflaterPool
+{
+
+    private final BlockingQueue<Deflater>[] gzip;
+    private final BlockingQueue<Deflater>[] zlib;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    DeflaterPool( int maxIdle )
+    {
+        gzip = new BlockingQueue[10];
+        zlib = new BlockingQueue[10];
+        for( int i = 0; i < 10; i++ ) {
+            gzip[i] = new ArrayBlockingQueue<>( maxIdle );
+            zlib[i] = new ArrayBlockingQueue<>( maxIdle );
+        }
+    }
+
+    /**
+     * Get a deflater
+     *
+     * @param level  compression level, 0..9
+     * @param nowrap true for raw deflate as used by gzip, false for the zlib format used by the deflate encoding
+     *
+     * @return
+     */
+    Deflater get( int level, boolean nowrap )
+    {
+        Deflater d = (nowrap ? gzip : zlib)[level].poll();
+        return d == null ? new Deflater( level, nowrap ) : d;
+    }
+
+    /**
+     * Return a deflater to the pool
+     *
+     * @param d      deflater
+     * @param level  level it was obtained with
+     * @param nowrap nowrap it was obtained with
+     */
+    void release( Deflater d, int level, boolean nowrap )
+    {
+        d.reset();
+        if( !(nowrap ? gzip : zlib)[level].offer( d ) ) {
+            d.end();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream as it is read, in either the gzip or zlib (the "deflate" content coding) format, using a pooled
+ * {@link Deflater}.
+ *
+ * @author peter
+ */
+class DeflatingInputStream
+        extends InputStream
+{
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int HEADER = 0;
+    private static final int BODY = 1;
+    private static final int TRAILER = 2;
+    private static final int DONE = 3;
+
+    private final InputStream in;
+    private final DeflaterPool pool;
+    private final int level;
+    private final boolean gzip;
+    private final CRC32 crc = new CRC32();
+    private final byte[] inBuf = new byte[BUFFER_SIZE];
+    private final byte[] outBuf = new byte[BUFFER_SIZE];
+    private Deflater deflater;
+    private int state = HEADER;
+    private int pos;
+    private int count;
+
+    DeflatingInputStream( InputStream in, DeflaterPool pool, int level, boolean gzip )
+    {
+        this.in = in;
+        this.pool = pool;
+        this.level = level;
+        this.gzip = gzip;
+        deflater = pool.get( level, gzip );
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        byte[] b = new byte[1];
+        return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len )
+            throws IOException
+    {
+        if( len == 0 ) {
+            return 0;
+        }
+        while( pos == count ) {
+            if( !fill() ) {
+                return -1;
+            }
+        }
+        int n = Math.min( len, count - pos );
+        System.arraycopy( outBuf, pos, b, off, n );
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Fill the output buffer
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill()
+            throws IOException
+    {
+        pos = 0;
+        count = 0;
+        switch( state ) {
+            case HEADER:
+                state = BODY;
+                if( gzip ) {
+                    // magic, deflate, no flags, no mtime, no extra flags, unknown os
+                    byte[] header = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+                    System.arraycopy( header, 0, outBuf, 0, header.length );
+                    count = header.length;
+                }
+                return true;
+
+            case BODY:
+                if( deflater.needsInput() && !deflater.finished() ) {
+                    int n = in.read( inBuf );
+                    if( n < 0 ) {
+                        deflater.finish();
+                    }
+                    else if( n > 0 ) {
+                        crc.update( inBuf, 0, n );
+                        deflater.setInput( inBuf, 0, n );
+                    }
+                }
+                count = deflater.deflate( outBuf );
+                if( deflater.finished() && count == 0 ) {
+                    state = TRAILER;
+                }
+                return true;
+
+            case TRAILER:
+                state = DONE;
+                if( gzip ) {
+                    writeInt( (int) crc.getValue(), 0 );
+                    writeInt( (int) deflater.getBytesRead(), 4 );
+                    count = 8;
+                }
+                release();
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    private void writeInt( int v, int off )
+    {
+        outBuf[off] = (byte) v;
+        outBuf[off + 1] = (byte) (v >> 8);
+        outBuf[off + 2] = (byte) (v >> 16);
+        outBuf[off + 3] = (byte) (v >> 24);
+    }
+
+    private void release()
+    {
+        if( deflater != null ) {
+            pool.release( deflater, level, gzip );
+            deflater = null;
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        state = DONE;
+        release();
+        in.close();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses everything written to it in either the gzip or zlib format using a pooled {@link Deflater}, the output side
+ * equivalent of {@link DeflatingInputStream}.
+ *
+ * @author peter
+ */
+class DeflatingOutputStream
+        extends FilterOutputStream
+{
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final DeflaterPool pool;
+    private final int level;
+    private final boolean gzip;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private Deflater deflater;
+
+    DeflatingOutputStream( OutputStream out, DeflaterPool pool, int level, boolean gzip )
+            throws IOException
+    {
+        super( out );
+        this.pool = pool;
+        this.level = level;
+        this.gzip = gzip;
+        deflater = pool.get( level, gzip );
+        if( gzip ) {
+            // magic, deflate, no flags, no mtime, no extra flags, unknown os
+            out.write( new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff} );
+        }
+    }
+
+    @Override
+    public void write( int b )
+            throws IOException
+    {
+        write( new byte[]{(byte) b}, 0, 1 );
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len )
+            throws IOException
+    {
+        if( deflater == null ) {
+            throw new IOException( "Stream closed" );
+        }
+        if( len > 0 ) {
+            crc.update( b, off, len );
+            deflater.setInput( b, off, len );
+            while( !deflater.needsInput() ) {
+                deflate();
+            }
+        }
+    }
+
+    private void deflate()
+            throws IOException
+    {
+        int n = deflater.deflate( buf );
+        if( n > 0 ) {
+            out.write( buf, 0, n );
+        }
+    }
+
+    /**
+     * Finish the compressed stream without closing the underlying one
+     *
+     * @throws IOException
+     */
+    public void finish()
+            throws IOException
+    {
+        if( deflater != null ) {
+            try {
+                deflater.finish();
+                while( !deflater.finished() ) {
+                    deflate();
+                }
+                if( gzip ) {
+                    writeInt( (int) crc.getValue() );
+                    writeInt( (int) deflater.getBytesRead() );
+                }
+            }
+            finally {
+                pool.release( deflater, level, gzip );
+                deflater = null;
+            }
+        }
+    }
+
+    private void writeInt( int v )
+            throws IOException
+    {
+        out.write( v );
+        out.write( v >> 8 );
+        out.write( v >> 16 );
+        out.write( v >> 24 );
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        try {
+            finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+}
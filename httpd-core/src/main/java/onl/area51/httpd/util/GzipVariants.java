@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+import onl.area51.httpd.action.Request;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Support for serving gzip compressed variants of static content.
+ * <p>
+ * A file "name.gz" alongside a file "name", and not older than it, is sent instead of it to clients accepting gzip. If
+ * {@link #setCacheDirectory(java.nio.file.Path)} has been called then compressible files without one have a compressed
+ * copy built in that directory on first access. Only the copy of the current version of each file is kept.
+ *
+ * @author peter
+ */
+public final class GzipVariants
+{
+
+    /**
+     * Content smaller than this is not worth compressing
+     */
+    public static final int MIN_SIZE = 256;
+
+    private static volatile Path cacheDirectory;
+
+    private GzipVariants()
+    {
+    }
+
+    public static Path getCacheDirectory()
+    {
+        return cacheDirectory;
+    }
+
+    /**
+     * Set the directory compressed copies of files are built in. The contents may be deleted at any time, e.g. on restart.
+     *
+     * @param dir directory, null to disable
+     *
+     * @throws IOException if the directory could not be created
+     */
+    public static void setCacheDirectory( Path dir )
+            throws IOException
+    {
+        if( dir != null ) {
+            Files.createDirectories( dir );
+        }
+        cacheDirectory = dir;
+    }
+
+    /**
+     * Is a content type worth compressing
+     *
+     * @param ct content type, may be null
+     *
+     * @return
+     */
+    public static boolean isCompressible( ContentType ct )
+    {
+        if( ct == null ) {
+            return false;
+        }
+        String m = ct.getMimeType();
+        return m.startsWith( "text/" )
+               || m.endsWith( "+xml" )
+               || m.endsWith( "/xml" )
+               || m.endsWith( "+json" )
+               || m.equals( "application/json" )
+               || m.equals( "application/javascript" );
+    }
+
+    /**
+     * Does the request accept a gzip encoded response. An explicit gzip or x-gzip takes precedence over "*" wherever it
+     * appears in the header.
+     *
+     * @param r
+     *
+     * @return
+     */
+    public static boolean acceptsGzip( Request r )
+    {
+        return "gzip".equals( encoding( r.getHeader( "Accept-Encoding" ), false ) );
+    }
+
+    /**
+     * Choose the content coding for a response from an Accept-Encoding header, preferring gzip. An explicit coding takes
+     * precedence over "*" wherever it appears in the header.
+     * <p>
+     * This is called for every response so the header is scanned in place rather than split or matched against a regex.
+     *
+     * @param acceptEncoding the header's value, may be null
+     * @param deflate        can deflate be chosen
+     *
+     * @return "gzip", "deflate" or null if neither is acceptable
+     */
+    static String encoding( String acceptEncoding, boolean deflate )
+    {
+        if( acceptEncoding == null ) {
+            return null;
+        }
+        Boolean gzip = null;
+        Boolean dfl = null;
+        Boolean any = null;
+        int len = acceptEncoding.length();
+        for( int i = 0; i < len; i++ ) {
+            int end = acceptEncoding.indexOf( ',', i );
+            if( end < 0 ) {
+                end = len;
+            }
+            int params = acceptEncoding.indexOf( ';', i );
+            if( params < 0 || params > end ) {
+                params = end;
+            }
+            boolean ok = params == end || !isZeroQ( acceptEncoding, params + 1, end );
+
+            int s = skipSpace( acceptEncoding, i, params );
+            int e = params;
+            while( e > s && isSpace( acceptEncoding.charAt( e - 1 ) ) ) {
+                e--;
+            }
+            if( is( acceptEncoding, s, e, "gzip" ) || is( acceptEncoding, s, e, "x-gzip" ) ) {
+                gzip = ok || gzip == Boolean.TRUE;
+            }
+            else if( is( acceptEncoding, s, e, "deflate" ) ) {
+                dfl = ok;
+            }
+            else if( is( acceptEncoding, s, e, "*" ) ) {
+                any = ok;
+            }
+            i = end;
+        }
+        if( gzip != null ? gzip : any == Boolean.TRUE ) {
+            return "gzip";
+        }
+        return deflate && (dfl != null ? dfl : any == Boolean.TRUE) ? "deflate" : null;
+    }
+
+    /**
+     * Do a coding's parameters contain a zero qvalue, e.g. "q=0", "Q = 0.000 "
+     */
+    private static boolean isZeroQ( String s, int start, int end )
+    {
+        int i = start;
+        while( i < end ) {
+            int next = s.indexOf( ';', i );
+            if( next < 0 || next > end ) {
+                next = end;
+            }
+            int p = skipSpace( s, i, next );
+            if( p < next && (s.charAt( p ) == 'q' || s.charAt( p ) == 'Q') ) {
+                p = skipSpace( s, p + 1, next );
+                if( p < next && s.charAt( p ) == '=' ) {
+                    p = skipSpace( s, p + 1, next );
+                    if( p == next || s.charAt( p ) != '0' ) {
+                        return false;
+                    }
+                    p++;
+                    if( p < next && s.charAt( p ) == '.' ) {
+                        p++;
+                        while( p < next && s.charAt( p ) == '0' ) {
+                            p++;
+                        }
+                    }
+                    return skipSpace( s, p, next ) == next;
+                }
+            }
+            i = next + 1;
+        }
+        return false;
+    }
+
+    private static boolean is( String s, int start, int end, String coding )
+    {
+        return end - start == coding.length() && s.regionMatches( true, start, coding, 0, coding.length() );
+    }
+
+    private static int skipSpace( String s, int start, int end )
+    {
+        int i = start;
+        while( i < end && isSpace( s.charAt( i ) ) ) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isSpace( char c )
+    {
+        return c == ' ' || c == '\t';
+    }
+
+    private static Path sibling( Path file )
+    {
+        return file.resolveSibling( file.getFileName() + ".gz" );
+    }
+
+    /**
+     * Could a file have a gzip variant, so responses for it should have "Vary: Accept-Encoding"
+     *
+     * @param file
+     * @param ct   content type of file
+     *
+     * @return
+     */
+    public static boolean mayHaveVariant( Path file, ContentType ct )
+    {
+        return (cacheDirectory != null && isCompressible( ct )) || Files.isRegularFile( sibling( file ) );
+    }
+
+    /**
+     * Find, or build in the cache directory, the gzip variant of a file
+     *
+     * @param file
+     * @param attrs attributes of file
+     * @param ct    content type of file
+     *
+     * @return the compressed file or null if there is none
+     *
+     * @throws IOException
+     */
+    public static Path variant( Path file, BasicFileAttributes attrs, ContentType ct )
+            throws IOException
+    {
+        Path sibling = sibling( file );
+        if( Files.isRegularFile( sibling ) && Files.getLastModifiedTime( sibling ).compareTo( attrs.lastModifiedTime() ) >= 0 ) {
+            return sibling;
+        }
+
+        Path dir = cacheDirectory;
+        if( dir == null || !isCompressible( ct ) || attrs.size() < MIN_SIZE ) {
+            return null;
+        }
+
+        // The name changes with the file so a stale copy is never used
+        String prefix = hash( file.toAbsolutePath().normalize().toString() );
+        String name = prefix
+                      + "-" + Long.toHexString( attrs.size() )
+                      + "-" + Long.toHexString( attrs.lastModifiedTime().toMillis() )
+                      + ".gz";
+        Path cached = dir.resolve( name );
+        if( !Files.isRegularFile( cached ) ) {
+            Path tmp = Files.createTempFile( dir, name, ".tmp" );
+            try {
+                try( OutputStream os = new GZIPOutputStream( Files.newOutputStream( tmp ) ) ) {
+                    Files.copy( file, os );
+                }
+                Files.move( tmp, cached, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            }
+            finally {
+                Files.deleteIfExists( tmp );
+            }
+            deleteSuperseded( dir, prefix, cached );
+        }
+        return cached;
+    }
+
+    /**
+     * Delete the copies of earlier versions of a file, leaving just the current one
+     */
+    private static void deleteSuperseded( Path dir, String prefix, Path current )
+    {
+        try( DirectoryStream<Path> ds = Files.newDirectoryStream( dir, prefix + "-*.gz" ) ) {
+            for( Path p: ds ) {
+                if( !p.equals( current ) ) {
+                    try {
+                        Files.deleteIfExists( p );
+                    }
+                    catch( IOException ex ) {
+                        // Still being sent on a platform which cannot delete open files, it will go next time
+                    }
+                }
+            }
+        }
+        catch( IOException ex ) {
+            // Only tidying up so not fatal
+        }
+    }
+
+    /**
+     * Compress content
+     *
+     * @param content
+     *
+     * @return
+     */
+    public static byte[] gzip( byte[] content )
+    {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream( content.length >> 1 );
+            try( GZIPOutputStream os = new GZIPOutputStream( bos ) ) {
+                os.write( content );
+            }
+            return bos.toByteArray();
+        }
+        catch( IOException ex ) {
+            // Cannot happen writing to memory
+            throw new UncheckedIOException( ex );
+        }
+    }
+
+    /**
+     * The entity tag of the gzip variant of an entity
+     *
+     * @param etag entity tag of the uncompressed entity
+     *
+     * @return
+     */
+    public static String etag( String etag )
+    {
+        return etag.endsWith( "\"" ) ? etag.substring( 0, etag.length() - 1 ) + "-gz\"" : etag + "-gz";
+    }
+
+    private static String hash( String s )
+    {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for( byte b: MessageDigest.getInstance( "SHA-1" ).digest( s.getBytes( StandardCharsets.UTF_8 ) ) ) {
+                sb.append( Character.forDigit( (b >> 4) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+            }
+            return sb.toString();
+        }
+        catch( NoSuchAlgorithmException ex ) {
+            // Every JVM must support SHA-1
+            throw new IllegalStateException( ex );
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.http.ContentTooLongException;
+
+/**
+ * An InputStream that fails once more than a set number of bytes have been read, used to bound request bodies.
+ * <p>
+ * Reading past the limit throws {@link ContentTooLongException} which {@link onl.area51.httpd.HttpRequestHandlerBuilder}
+ * turns into a 413 response.
+ *
+ * @author peter
+ */
+public class LimitedInputStream
+        extends FilterInputStream
+{
+
+    private final long limit;
+    private long count;
+    private long mark = -1;
+
+    /**
+     *
+     * @param in    stream to read
+     * @param limit maximum number of bytes that may be read
+     */
+    public LimitedInputStream( InputStream in, long limit )
+    {
+        super( in );
+        this.limit = limit;
+    }
+
+    /**
+     * The exception thrown when a body is larger than it's limit
+     *
+     * @param limit
+     *
+     * @return
+     */
+    public static ContentTooLongException tooLong( long limit )
+    {
+        return new ContentTooLongException( "Request body exceeds %d bytes", limit );
+    }
+
+    private long count( long n )
+            throws ContentTooLongException
+    {
+        if( n > 0 ) {
+            count += n;
+            if( count > limit ) {
+                throw tooLong( limit );
+            }
+        }
+        return n;
+    }
+
+    /**
+     * How much to read next: at most one byte past the limit so an overlong body is detected without reading all of it
+     */
+    private long remaining()
+    {
+        long remaining = limit - count;
+        return remaining == Long.MAX_VALUE ? remaining : remaining + 1;
+    }
+
+    @Override
+    public int read()
+            throws IOException
+    {
+        int b = super.read();
+        if( b > -1 ) {
+            count( 1 );
+        }
+        return b;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len )
+            throws IOException
+    {
+        return (int) count( super.read( b, off, (int) Math.min( len, remaining() ) ) );
+    }
+
+    @Override
+    public long skip( long n )
+            throws IOException
+    {
+        return count( super.skip( Math.min( n, remaining() ) ) );
+    }
+
+    @Override
+    public synchronized void mark( int readlimit )
+    {
+        super.mark( readlimit );
+        mark = count;
+    }
+
+    @Override
+    public synchronized void reset()
+            throws IOException
+    {
+        super.reset();
+        if( mark > -1 ) {
+            count = mark;
+        }
+    }
+}
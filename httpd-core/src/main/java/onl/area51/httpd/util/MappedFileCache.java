@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded registry of memory mapped files used by {@link MappedPathEntity}.
+ * <p>
+ * Files are mapped on first use and kept until evicted, least recently used first, once either the number of files or
+ * the total mapped size exceeds the limits. Each lookup checks the file's size and modification time and maps it again
+ * if either has changed, so an updated file is picked up while responses already being sent carry on with the old mapping.
+ * <p>
+ * The JVM has no supported way to unmap a file so an evicted mapping is released by the garbage collector once no
+ * response is using it, the limits bound what the cache holds rather than what is mapped at any instant.
+ * <p>
+ * Files should be replaced by writing a new file and renaming it over the old one. Truncating a file in place while it
+ * is being sent from a mapping can crash the JVM on some platforms.
+ *
+ * @author peter
+ */
+public class MappedFileCache
+{
+
+    private static volatile MappedFileCache defaultCache;
+
+    private final int maxFiles;
+    private final long maxBytes;
+    private final Map<Path, Mapping> mappings = new LinkedHashMap<>( 16, 0.75f, true );
+    private long mappedBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     *
+     * @param maxFiles maximum number of files to keep mapped
+     * @param maxBytes maximum total size of the mapped files. Files larger than this are never mapped.
+     */
+    public MappedFileCache( int maxFiles, long maxBytes )
+    {
+        if( maxFiles < 1 || maxBytes < 1 ) {
+            throw new IllegalArgumentException( "Invalid cache size" );
+        }
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The cache used by {@link MappedPathEntity#create(java.nio.file.Path)} and when sending files with
+     * {@link onl.area51.httpd.action.Actions#sendPath(onl.area51.httpd.action.Request, java.nio.file.Path)}.
+     * <p>
+     * Mapping files is opt in, so this is null unless set, e.g. to {@code new MappedFileCache( 64, 256L << 20 )}.
+     *
+     * @return cache or null if files are not to be mapped
+     */
+    public static MappedFileCache getDefault()
+    {
+        return defaultCache;
+    }
+
+    public static void setDefault( MappedFileCache cache )
+    {
+        defaultCache = cache;
+    }
+
+    /**
+     * Get the mapping of a file
+     *
+     * @param file
+     *
+     * @return the mapping or null if the file cannot be mapped by this cache, e.g. it is too large
+     *
+     * @throws IOException
+     */
+    public Mapping get( Path file )
+            throws IOException
+    {
+        return get( file, Files.readAttributes( file, BasicFileAttributes.class ) );
+    }
+
+    /**
+     * Get the mapping of a file whose attributes the caller has already read, saving reading them again
+     *
+     * @param file
+     * @param attrs the file's current attributes
+     *
+     * @return the mapping or null if the file cannot be mapped by this cache, e.g. it is too large
+     *
+     * @throws IOException
+     */
+    public Mapping get( Path file, BasicFileAttributes attrs )
+            throws IOException
+    {
+        Path key = file.toAbsolutePath().normalize();
+        if( !attrs.isRegularFile() || attrs.size() > maxBytes || attrs.size() > Integer.MAX_VALUE ) {
+            return null;
+        }
+
+        synchronized( this ) {
+            Mapping m = mappings.get( key );
+            if( m != null && m.size == attrs.size() && m.lastModified.equals( attrs.lastModifiedTime() ) ) {
+                hits++;
+                return m;
+            }
+            misses++;
+        }
+
+        // Map outside the lock, if two threads race then the last one in wins which is harmless
+        Mapping m = map( key, attrs );
+        synchronized( this ) {
+            Mapping old = mappings.put( key, m );
+            if( old != null ) {
+                mappedBytes -= old.size;
+            }
+            mappedBytes += m.size;
+            evict();
+        }
+        return m;
+    }
+
+    private static Mapping map( Path file, BasicFileAttributes attrs )
+            throws IOException
+    {
+        try( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ) {
+            // The file may have changed since we read the attributes so map what is there now
+            long size = Math.min( channel.size(), Integer.MAX_VALUE );
+            return new Mapping( channel.map( FileChannel.MapMode.READ_ONLY, 0, size ), size, attrs.lastModifiedTime() );
+        }
+    }
+
+    private void evict()
+    {
+        Iterator<Mapping> it = mappings.values().iterator();
+        while( (mappings.size() > maxFiles || mappedBytes > maxBytes) && it.hasNext() ) {
+            mappedBytes -= it.next().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * Remove all mappings
+     */
+    public synchronized void clear()
+    {
+        mappings.clear();
+        mappedBytes = 0;
+    }
+
+    public synchronized int size()
+    {
+        return mappings.size();
+    }
+
+    public synchronized long getMappedBytes()
+    {
+        return mappedBytes;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * A mapped file
+     */
+    public static final class Mapping
+    {
+
+        private final MappedByteBuffer buffer;
+        private final long size;
+        private final FileTime lastModified;
+
+        private Mapping( MappedByteBuffer buffer, long size, FileTime lastModified )
+        {
+            this.buffer = buffer;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * A new read only view of the whole mapping, so each caller has it's own position
+         *
+         * @return
+         */
+        public ByteBuffer buffer()
+        {
+            return buffer.asReadOnlyBuffer();
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public FileTime getLastModified()
+        {
+            return lastModified;
+        }
+    }
+}
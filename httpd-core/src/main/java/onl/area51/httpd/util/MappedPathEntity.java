@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.util.Args;
+
+/**
+ * An entity for frequently requested files which writes straight from a memory mapping held in a
+ * {@link MappedFileCache}, avoiding opening and reading the file for each request.
+ * <p>
+ * As with {@link PathEntity} an instance must only be sent by one response at a time.
+ *
+ * @author peter
+ */
+public class MappedPathEntity
+        extends AbstractHttpEntity
+        implements HttpAsyncContentProducer
+{
+
+    private final MappedFileCache.Mapping mapping;
+    private ByteBuffer producing;
+
+    /**
+     * Create an entity for a file using the default {@link MappedFileCache}
+     *
+     * @param file
+     *
+     * @return a MappedPathEntity or, if there is no default cache or the file cannot be mapped, a {@link PathEntity}
+     *
+     * @throws IOException
+     */
+    public static HttpEntity create( Path file )
+            throws IOException
+    {
+        MappedFileCache cache = MappedFileCache.getDefault();
+        ContentType contentType = ContentTypeResolver.resolve( file );
+        return cache == null ? new PathEntity( file, contentType ) : create( cache, file, contentType );
+    }
+
+    /**
+     * Create an entity for a file
+     *
+     * @param cache       the cache to use
+     * @param file
+     * @param contentType
+     *
+     * @return a MappedPathEntity or, if the file cannot be mapped, a {@link PathEntity}
+     *
+     * @throws IOException
+     */
+    public static HttpEntity create( MappedFileCache cache, Path file, ContentType contentType )
+            throws IOException
+    {
+        Args.notNull( file, "Path" );
+        MappedFileCache.Mapping mapping = cache.get( file );
+        return mapping == null ? new PathEntity( file, contentType ) : new MappedPathEntity( mapping, contentType );
+    }
+
+    /**
+     * Create an entity for a file whose attributes the caller has already read
+     *
+     * @param cache       the cache to use
+     * @param file
+     * @param attrs       the file's current attributes
+     * @param contentType
+     *
+     * @return a MappedPathEntity or, if the file cannot be mapped, a {@link PathEntity}
+     *
+     * @throws IOException
+     */
+    public static HttpEntity create( MappedFileCache cache, Path file, BasicFileAttributes attrs, ContentType contentType )
+            throws IOException
+    {
+        Args.notNull( file, "Path" );
+        MappedFileCache.Mapping mapping = cache.get( file, attrs );
+        return mapping == null ? new PathEntity( file, contentType ) : new MappedPathEntity( mapping, contentType );
+    }
+
+    @SuppressWarnings("OverridableMethodCallInConstructor")
+    protected MappedPathEntity( MappedFileCache.Mapping mapping, ContentType contentType )
+    {
+        this.mapping = Args.notNull( mapping, "Mapping" );
+        if( contentType != null ) {
+            setContentType( contentType.toString() );
+        }
+    }
+
+    @Override
+    public boolean isRepeatable()
+    {
+        return true;
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return mapping.getSize();
+    }
+
+    @Override
+    public InputStream getContent()
+            throws IOException
+    {
+        ByteBuffer b = mapping.buffer();
+        return new InputStream()
+        {
+            @Override
+            public int read()
+                    throws IOException
+            {
+                return b.hasRemaining() ? b.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read( byte[] buf, int off, int len )
+                    throws IOException
+            {
+                if( !b.hasRemaining() ) {
+                    return -1;
+                }
+                int n = Math.min( len, b.remaining() );
+                b.get( buf, off, n );
+                return n;
+            }
+
+            @Override
+            public int available()
+                    throws IOException
+            {
+                return b.remaining();
+            }
+        };
+    }
+
+    @Override
+    public void writeTo( OutputStream outstream )
+            throws IOException
+    {
+        Args.notNull( outstream, "Output stream" );
+        ByteBuffer b = mapping.buffer();
+        WritableByteChannel channel = Channels.newChannel( outstream );
+        while( b.hasRemaining() ) {
+            channel.write( b );
+        }
+        outstream.flush();
+    }
+
+    @Override
+    public void produceContent( ContentEncoder encoder, IOControl ioctrl )
+            throws IOException
+    {
+        if( producing == null ) {
+            producing = mapping.buffer();
+        }
+
+        if( producing.hasRemaining() ) {
+            encoder.write( producing );
+        }
+
+        if( !producing.hasRemaining() ) {
+            encoder.complete();
+            close();
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        producing = null;
+    }
+
+    @Override
+    public boolean isStreaming()
+    {
+        return false;
+    }
+}
@@ -19,6 +19,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -26,19 +29,43 @@ import onl.area51.httpd.action.Request;
 import org.apache.http.HttpEntity;
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
 import org.apache.http.util.Args;
 
 /**
  * A java nio2 equivalent to {@link org.apache.http.entity.FileEntity}
+ * <p>
+ * When served by the non-blocking engine the file is sent with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * so on a plain connection the kernel copies it straight to the socket. When the response is chunked it falls back to
+ * reading the file through a small buffer. The blocking engine only provides an {@link OutputStream} so there it is always
+ * copied.
+ * <p>
+ * An entity may also be part of a file, used for partial (206) responses to Range requests.
+ * <p>
+ * As the transfer position is held by the entity an instance must only be sent by one response at a time.
  *
  * @author peter
  */
 public class PathEntity
         extends AbstractHttpEntity
-        implements Cloneable
+        implements HttpAsyncContentProducer,
+                   Cloneable
 {
 
+    private static final int BUFFER_SIZE = 8192;
+
     protected final Path file;
+    // The part of the file to send, length is -1 for the whole file
+    protected final long offset;
+    protected final long length;
+
+    private FileChannel channel;
+    private long position;
+    private long end;
+    private ByteBuffer buffer;
 
     public static HttpEntity create( String n, Request r )
     {
@@ -50,11 +77,26 @@ public class PathEntity
         return new PathEntity.SizeOnly( r.getAttribute( n ) );
     }
 
-    @SuppressWarnings("OverridableMethodCallInConstructor")
     public PathEntity( final Path file, final ContentType contentType )
+    {
+        this( file, contentType, 0L, -1L );
+    }
+
+    /**
+     * An entity for part of a file
+     *
+     * @param file
+     * @param contentType
+     * @param offset      offset of the first byte to send
+     * @param length      number of bytes to send or -1 for the rest of the file
+     */
+    @SuppressWarnings("OverridableMethodCallInConstructor")
+    public PathEntity( final Path file, final ContentType contentType, final long offset, final long length )
     {
         super();
         this.file = Args.notNull( file, "Path" );
+        this.offset = Args.notNegative( offset, "Offset" );
+        this.length = length;
         if( contentType != null ) {
             setContentType( contentType.toString() );
         }
@@ -74,8 +116,11 @@ public class PathEntity
     @Override
     public long getContentLength()
     {
+        if( length >= 0L ) {
+            return length;
+        }
         try {
-            return Files.size( file );
+            return Files.size( file ) - offset;
         }
         catch( IOException ex ) {
             throw new UncheckedIOException( ex );
@@ -86,14 +131,128 @@ public class PathEntity
     public InputStream getContent()
             throws IOException
     {
-        return Files.newInputStream( file, StandardOpenOption.READ );
+        if( offset == 0L && length < 0L ) {
+            return Files.newInputStream( file, StandardOpenOption.READ );
+        }
+
+        FileChannel c = FileChannel.open( file, StandardOpenOption.READ );
+        c.position( offset );
+        InputStream is = Channels.newInputStream( c );
+        long limit = getContentLength();
+        return new InputStream()
+        {
+            private long remaining = limit;
+
+            @Override
+            public int read()
+                    throws IOException
+            {
+                if( remaining <= 0 ) {
+                    return -1;
+                }
+                int b = is.read();
+                if( b > -1 ) {
+                    remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read( byte[] b, int off, int len )
+                    throws IOException
+            {
+                if( remaining <= 0 ) {
+                    return -1;
+                }
+                int n = is.read( b, off, (int) Math.min( len, remaining ) );
+                if( n > 0 ) {
+                    remaining -= n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                is.close();
+            }
+        };
     }
 
     @Override
     public void writeTo( final OutputStream outstream )
             throws IOException
     {
-        Files.copy( file, outstream );
+        if( offset == 0L && length < 0L ) {
+            Files.copy( file, outstream );
+        }
+        else {
+            try( InputStream is = getContent() ) {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while( (n = is.read( buf )) > -1 ) {
+                    outstream.write( buf, 0, n );
+                }
+            }
+        }
+    }
+
+    @Override
+    public void produceContent( ContentEncoder encoder, IOControl ioctrl )
+            throws IOException
+    {
+        if( channel == null ) {
+            channel = FileChannel.open( file, StandardOpenOption.READ );
+            position = offset;
+            // Never send more than we said we would
+            end = offset + getContentLength();
+        }
+
+        long remaining = end - position;
+        if( remaining > 0 ) {
+            if( encoder instanceof FileContentEncoder ) {
+                long n = ((FileContentEncoder) encoder).transfer( channel, position, remaining );
+                // transfer() returns 0 rather than -1 at the end of the file so check it's not been truncated
+                if( n < remaining && position + n >= channel.size() ) {
+                    throw new IOException( "Unexpected end of " + file );
+                }
+                position += n;
+            }
+            else {
+                if( buffer == null ) {
+                    buffer = ByteBuffer.allocate( (int) Math.min( BUFFER_SIZE, remaining ) );
+                }
+                buffer.clear();
+                if( buffer.remaining() > remaining ) {
+                    buffer.limit( (int) remaining );
+                }
+                int read = channel.read( buffer, position );
+                if( read < 0 ) {
+                    throw new IOException( "Unexpected end of " + file );
+                }
+                buffer.flip();
+                // Anything not written is read again next time
+                position += encoder.write( buffer );
+            }
+        }
+
+        if( position >= end ) {
+            encoder.complete();
+            close();
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        FileChannel c = channel;
+        channel = null;
+        buffer = null;
+        if( c != null ) {
+            c.close();
+        }
     }
 
     /**
@@ -151,5 +310,12 @@ public class PathEntity
         {
         }
 
+        @Override
+        public void produceContent( ContentEncoder encoder, IOControl ioctrl )
+                throws IOException
+        {
+            encoder.complete();
+        }
+
     }
 }
@@ -0,0 +1,523 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * An in-memory cache of classpath resources, used by
+ * {@link onl.area51.httpd.action.Actions#renderResource(java.lang.Class, onl.area51.httpd.action.Request, java.net.URI, java.lang.String)}
+ * so that a resource is only looked up and read from it's jar once.
+ * <p>
+ * The cache is bounded by the number of entries and their total size, evicting the least recently used first. Resources
+ * larger than the maximum entry size are never cached, but their urls are remembered so later requests stream them
+ * without reading them again first.
+ * <p>
+ * Lookups do not lock, a hit only records when the resource was used. Loading a resource, and evicting others to make
+ * room for it, is serialised.
+ * <p>
+ * Each resource may also have a gzip variant, either a resource with the same name plus ".gz" or, for compressible types,
+ * compressed when first asked for. A variant's size counts towards the resource's.
+ *
+ * @author peter
+ */
+public class ResourceCache
+{
+
+    private static volatile ResourceCache defaultCache;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxEntrySize;
+    private final Map<Key, Resource> resources = new ConcurrentHashMap<>();
+    // urls of resources too large to cache, bounded by maxEntries
+    private final Map<String, Boolean> tooLarge = new LinkedHashMap<>( 16, 0.75f, true );
+    // Guarded by this
+    private long bytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     *
+     * @param maxEntries   maximum number of resources to hold
+     * @param maxBytes     maximum total size of the resources held
+     * @param maxEntrySize maximum size of a single resource
+     */
+    public ResourceCache( int maxEntries, long maxBytes, int maxEntrySize )
+    {
+        if( maxEntries < 1 || maxBytes < 1 || maxEntrySize < 1 ) {
+            throw new IllegalArgumentException( "Invalid cache size" );
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    /**
+     * The cache used by renderResource. Unless set this holds up to 1024 resources or 32Mb, each no larger than 1Mb.
+     *
+     * @return
+     */
+    public static ResourceCache getDefault()
+    {
+        ResourceCache c = defaultCache;
+        if( c == null ) {
+            synchronized( ResourceCache.class ) {
+                c = defaultCache;
+                if( c == null ) {
+                    c = new ResourceCache( 1024, 32L << 20, 1 << 20 );
+                    defaultCache = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    public static void setDefault( ResourceCache cache )
+    {
+        defaultCache = cache;
+    }
+
+    /**
+     * Get a resource if it is cached
+     *
+     * @param clazz Class the resource is relative to
+     * @param path  absolute resource path
+     *
+     * @return resource or null if not cached
+     */
+    public Resource getIfPresent( Class<?> clazz, String path )
+    {
+        Resource r = resources.get( new Key( clazz, path ) );
+        if( r == null ) {
+            misses.increment();
+        }
+        else {
+            hits.increment();
+            r.used = System.nanoTime();
+        }
+        return r;
+    }
+
+    /**
+     * Get a resource, loading it if not already cached
+     *
+     * @param clazz Class the resource is relative to
+     * @param path  absolute resource path
+     *
+     * @return resource or null if it does not exist or is larger than the maximum entry size
+     *
+     * @throws IOException
+     */
+    public Resource get( Class<?> clazz, String path )
+            throws IOException
+    {
+        Resource r = getIfPresent( clazz, path );
+        return r == null ? load( clazz, path, clazz.getResource( path ) ) : r;
+    }
+
+    /**
+     * Load a resource into the cache
+     *
+     * @param clazz Class the resource is relative to
+     * @param path  absolute resource path
+     * @param url   the resource's url
+     *
+     * @return resource or null if url is null or the resource is larger than the maximum entry size, in which case it should
+     *         be streamed instead
+     *
+     * @throws IOException
+     */
+    public Resource load( Class<?> clazz, String path, URL url )
+            throws IOException
+    {
+        if( url == null || isTooLarge( url ) ) {
+            return null;
+        }
+
+        byte[] content = read( url );
+        if( content == null ) {
+            setTooLarge( url );
+            return null;
+        }
+
+        ContentType ct = ContentTypeResolver.resolve( path );
+        Resource r = new Resource( content, ct == ContentType.APPLICATION_OCTET_STREAM ? null : ct );
+        r.cache = this;
+        r.key = new Key( clazz, path );
+        r.used = System.nanoTime();
+
+        URL gzUrl = clazz.getResource( path + ".gz" );
+        if( gzUrl != null ) {
+            byte[] gz = read( gzUrl );
+            if( gz != null ) {
+                r.gzip = new Resource( gz, r.contentType, GzipVariants.etag( r.etag ), true );
+            }
+        }
+
+        synchronized( this ) {
+            Resource old = resources.put( r.key, r );
+            if( old != null ) {
+                evicted( old );
+            }
+            r.resident = true;
+            bytes += r.size();
+            trim();
+        }
+        return r;
+    }
+
+    /**
+     * Evict the least recently used resources until within the bounds
+     */
+    private synchronized void trim()
+    {
+        if( resources.size() <= maxEntries && bytes <= maxBytes ) {
+            return;
+        }
+
+        // Snapshot when each was used as hits update it concurrently
+        List<Map.Entry<Long, Resource>> entries = new ArrayList<>( resources.size() );
+        for( Resource r: resources.values() ) {
+            entries.add( new AbstractMap.SimpleImmutableEntry<>( r.used, r ) );
+        }
+        entries.sort( Map.Entry.comparingByKey() );
+
+        Iterator<Map.Entry<Long, Resource>> it = entries.iterator();
+        while( (resources.size() > maxEntries || bytes > maxBytes) && it.hasNext() ) {
+            Resource r = it.next().getValue();
+            if( resources.remove( r.key, r ) ) {
+                evicted( r );
+            }
+        }
+    }
+
+    private synchronized void evicted( Resource r )
+    {
+        bytes -= r.size();
+        r.resident = false;
+    }
+
+    /**
+     * Account for a gzip variant built after the resource was cached
+     *
+     * @return the variant to use, the one already set if another thread got there first
+     */
+    private synchronized Resource setGzip( Resource r, Resource gzip )
+    {
+        if( r.gzip != null ) {
+            return r.gzip;
+        }
+        r.gzip = gzip;
+        if( r.resident && gzip != r ) {
+            bytes += gzip.content.length;
+            trim();
+        }
+        return gzip;
+    }
+
+    /**
+     * Has a resource been found to be larger than the maximum entry size
+     *
+     * @param url the resource's url
+     *
+     * @return
+     */
+    public synchronized boolean isTooLarge( URL url )
+    {
+        return tooLarge.get( url.toExternalForm() ) != null;
+    }
+
+    private synchronized void setTooLarge( URL url )
+    {
+        tooLarge.put( url.toExternalForm(), Boolean.TRUE );
+        Iterator<String> it = tooLarge.keySet().iterator();
+        while( tooLarge.size() > maxEntries && it.hasNext() ) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Read a resource
+     *
+     * @return content or null if larger than maxEntrySize
+     */
+    private byte[] read( URL url )
+            throws IOException
+    {
+        URLConnection con = url.openConnection();
+        try( InputStream is = con.getInputStream() ) {
+            long length = con.getContentLengthLong();
+            if( length > maxEntrySize ) {
+                return null;
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream( length < 0 ? 8192 : (int) length );
+            byte[] buf = new byte[8192];
+            int n;
+            while( (n = is.read( buf )) > -1 ) {
+                if( bos.size() + n > maxEntrySize ) {
+                    return null;
+                }
+                bos.write( buf, 0, n );
+            }
+            return bos.toByteArray();
+        }
+    }
+
+    /**
+     * Load resources into the cache, usually at startup
+     *
+     * @param clazz Class the resources are relative to
+     * @param paths absolute resource paths. Any that do not exist are ignored
+     *
+     * @throws IOException
+     */
+    public void warm( Class<?> clazz, String... paths )
+            throws IOException
+    {
+        for( String path: paths ) {
+            get( clazz, path );
+        }
+    }
+
+    public synchronized void clear()
+    {
+        resources.values().forEach( r -> r.resident = false );
+        resources.clear();
+        tooLarge.clear();
+        bytes = 0;
+    }
+
+    public int size()
+    {
+        return resources.size();
+    }
+
+    /**
+     * The total size of the resources held, including their gzip variants
+     *
+     * @return
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * A cached resource
+     */
+    public static final class Resource
+    {
+
+        private final byte[] content;
+        private final ContentType contentType;
+        private final String etag;
+        private final boolean gzipped;
+        // The gzip variant, this if there is none or null if not yet known
+        private volatile Resource gzip;
+        // Set for cached resources, not their variants
+        private ResourceCache cache;
+        private Key key;
+        private volatile long used;
+        // Guarded by cache
+        private boolean resident;
+
+        private Resource( byte[] content, ContentType contentType )
+        {
+            this( content, contentType, etag( content ), false );
+        }
+
+        private Resource( byte[] content, ContentType contentType, String etag, boolean gzipped )
+        {
+            this.content = content;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.gzipped = gzipped;
+        }
+
+        private static String etag( byte[] content )
+        {
+            try {
+                MessageDigest md = MessageDigest.getInstance( "MD5" );
+                return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString( md.digest( content ) ) + '"';
+            }
+            catch( NoSuchAlgorithmException ex ) {
+                // Every JVM must support MD5
+                throw new IllegalStateException( ex );
+            }
+        }
+
+        public int getContentLength()
+        {
+            return content.length;
+        }
+
+        /**
+         * The size counted against the cache's bounds
+         */
+        private long size()
+        {
+            Resource r = gzip;
+            return r == null || r == this ? content.length : content.length + r.content.length;
+        }
+
+        /**
+         * The content type resolved from the resource name
+         *
+         * @return content type or null if unknown
+         */
+        public ContentType getContentType()
+        {
+            return contentType;
+        }
+
+        /**
+         * A strong ETag from a hash of the content, including the quotes
+         *
+         * @return
+         */
+        public String getETag()
+        {
+            return etag;
+        }
+
+        /**
+         * The gzip variant of this resource, compressing it on first use if it's content type is compressible
+         *
+         * @return variant or null if there is none
+         */
+        public Resource getGzip()
+        {
+            if( gzipped ) {
+                return null;
+            }
+
+            Resource r = gzip;
+            if( r == null ) {
+                r = this;
+                if( GzipVariants.isCompressible( contentType ) && content.length >= GzipVariants.MIN_SIZE ) {
+                    byte[] gz = GzipVariants.gzip( content );
+                    if( gz.length < content.length ) {
+                        r = new Resource( gz, contentType, GzipVariants.etag( etag ), true );
+                    }
+                }
+                // Benign race, at worst we compress twice but only the first is kept
+                r = cache == null ? r : cache.setGzip( this, r );
+                gzip = r;
+            }
+            return r == this ? null : r;
+        }
+
+        /**
+         * Is this a gzip variant
+         *
+         * @return
+         */
+        public boolean isGzip()
+        {
+            return gzipped;
+        }
+
+        /**
+         * A new entity for this resource, sharing the cached content
+         *
+         * @return
+         */
+        public HttpEntity createEntity()
+        {
+            ByteArrayEntity entity = new ByteArrayEntity( content, contentType );
+            if( isGzip() ) {
+                entity.setContentEncoding( "gzip" );
+            }
+            return entity;
+        }
+
+        /**
+         * A stream of the content
+         *
+         * @return
+         */
+        public InputStream getContent()
+        {
+            return new ByteArrayInputStream( content );
+        }
+    }
+
+    private static final class Key
+    {
+
+        private final Class<?> clazz;
+        private final String path;
+        private final int hash;
+
+        Key( Class<?> clazz, String path )
+        {
+            this.clazz = clazz;
+            this.path = path;
+            this.hash = 31 * clazz.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            if( this == obj ) {
+                return true;
+            }
+            if( !(obj instanceof Key) ) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return clazz == k.clazz && Objects.equals( path, k.path );
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+/**
+ * Compresses responses on the fly for clients that accept gzip or deflate.
+ * <p>
+ * Install with {@link onl.area51.httpd.HttpServerBuilder#compress(onl.area51.httpd.util.ResponseCompression)}. Only
+ * successful responses with a compressible content type, see {@link GzipVariants#isCompressible(org.apache.http.entity.ContentType)},
+ * and no existing content encoding are compressed, and then only if they are not known to be smaller than the minimum
+ * size. Files and responses supporting ranges are left alone so their ETag and ranges remain valid, use
+ * {@link GzipVariants} to serve precompressed files.
+ * <p>
+ * A compressed response's ETag is suffixed as with {@link GzipVariants#etag(java.lang.String)}, and
+ * {@link onl.area51.httpd.action.Request#isETagMatch(java.lang.String)} accepts the suffixed tag, so conditional requests
+ * still work.
+ * <p>
+ * A body already in memory is compressed straight away, which with the non-blocking engine happens on the worker before
+ * the response is handed to the I/O threads. Streamed bodies are compressed as they are sent, chunked.
+ *
+ * @author peter
+ */
+public class ResponseCompression
+        implements HttpResponseInterceptor
+{
+
+    /**
+     * Context attribute marking that a response has been considered for compression
+     */
+    private static final String ATTRIBUTE = "response.compression";
+
+    private final int minSize;
+    private final int defaultLevel;
+    private final Map<String, Integer> levels;
+    private final Predicate<ContentType> compressible;
+    private final DeflaterPool pool;
+
+    private ResponseCompression( Builder b )
+    {
+        minSize = b.minSize;
+        defaultLevel = b.defaultLevel;
+        levels = new HashMap<>( b.levels );
+        compressible = b.compressible;
+        pool = new DeflaterPool( b.maxIdle );
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    @Override
+    public void process( HttpResponse response, HttpContext context )
+            throws HttpException,
+                   IOException
+    {
+        // The non-blocking engine runs this on the worker so don't run again as an interceptor
+        if( context.getAttribute( ATTRIBUTE ) != null ) {
+            return;
+        }
+        context.setAttribute( ATTRIBUTE, Boolean.TRUE );
+
+        // Revalidating a compressed copy so keep the client's validator
+        if( response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED ) {
+            Header etag = response.getFirstHeader( "ETag" );
+            HttpRequest request = HttpCoreContext.adapt( context ).getRequest();
+            Header inm = request == null ? null : request.getFirstHeader( "If-None-Match" );
+            if( etag != null && inm != null && inm.getValue().contains( GzipVariants.etag( etag.getValue() ) ) ) {
+                response.setHeader( "ETag", GzipVariants.etag( etag.getValue() ) );
+            }
+            return;
+        }
+
+        HttpEntity entity = response.getEntity();
+        if( entity == null || entity.getContentEncoding() != null || response.containsHeader( "Content-Encoding" ) ) {
+            return;
+        }
+
+        // Files are sent as is so they keep their ETag, range support and zero copy transfers
+        if( entity instanceof PathEntity || entity instanceof MappedPathEntity || entity instanceof ByteRangesEntity
+            || response.containsHeader( "Accept-Ranges" ) ) {
+            return;
+        }
+
+        int status = response.getStatusLine().getStatusCode();
+        if( status != HttpStatus.SC_OK && status != HttpStatus.SC_CREATED && status < HttpStatus.SC_BAD_REQUEST ) {
+            return;
+        }
+
+        ContentType ct;
+        try {
+            ct = ContentType.get( entity );
+        }
+        catch( RuntimeException ex ) {
+            return;
+        }
+        if( ct == null || !compressible.test( ct ) ) {
+            return;
+        }
+
+        // The response now depends on the request's Accept-Encoding
+        response.addHeader( "Vary", "Accept-Encoding" );
+
+        long length = entity.getContentLength();
+        if( length >= 0 && length < minSize ) {
+            return;
+        }
+
+        HttpRequest request = HttpCoreContext.adapt( context ).getRequest();
+        Header acceptEncoding = request == null ? null : request.getFirstHeader( "Accept-Encoding" );
+        String encoding = acceptEncoding == null ? null : GzipVariants.encoding( acceptEncoding.getValue(), true );
+        if( encoding != null ) {
+            // The compressed body is a different representation so cannot share the identity's strong validator
+            Header etag = response.getFirstHeader( "ETag" );
+            if( etag != null ) {
+                response.setHeader( "ETag", GzipVariants.etag( etag.getValue() ) );
+            }
+
+            int level = levels.getOrDefault( ct.getMimeType(), defaultLevel );
+            boolean gzip = "gzip".equals( encoding );
+            if( entity instanceof StreamingEntity ) {
+                // Compress as it's generated so it's still written by the worker rather than read on an I/O thread
+                ((StreamingEntity) entity).setEncoder( encoding, os -> {
+                    try {
+                        return new DeflatingOutputStream( os, pool, level, gzip );
+                    }
+                    catch( IOException ex ) {
+                        throw new UncheckedIOException( ex );
+                    }
+                } );
+            }
+            else if( !entity.isStreaming() ) {
+                // Already in memory so compress now, on the worker, rather than when the entity is sent
+                response.setEntity( compress( entity, encoding, level ) );
+            }
+            else {
+                response.setEntity( new CompressedEntity( entity, encoding, level ) );
+            }
+        }
+    }
+
+    private HttpEntity compress( HttpEntity entity, String encoding, int level )
+            throws IOException
+    {
+        long length = entity.getContentLength();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream( length > 0 && length < Integer.MAX_VALUE ? (int) (length >> 2) + 64 : 1024 );
+        try( DeflatingOutputStream os = new DeflatingOutputStream( bos, pool, level, "gzip".equals( encoding ) ) ) {
+            entity.writeTo( os );
+        }
+
+        ByteArrayEntity compressed = new ByteArrayEntity( bos.toByteArray() );
+        compressed.setContentType( entity.getContentType() );
+        compressed.setContentEncoding( encoding );
+        return compressed;
+    }
+
+    private class CompressedEntity
+            extends HttpEntityWrapper
+    {
+
+        private final Header contentEncoding;
+        private final int level;
+
+        CompressedEntity( HttpEntity entity, String encoding, int level )
+        {
+            super( entity );
+            this.contentEncoding = new BasicHeader( "Content-Encoding", encoding );
+            this.level = level;
+        }
+
+        @Override
+        public Header getContentEncoding()
+        {
+            return contentEncoding;
+        }
+
+        @Override
+        public long getContentLength()
+        {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked()
+        {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent()
+                throws IOException
+        {
+            return new DeflatingInputStream( wrappedEntity.getContent(), pool, level, "gzip".equals( contentEncoding.getValue() ) );
+        }
+
+        @Override
+        public void writeTo( OutputStream outstream )
+                throws IOException
+        {
+            try( InputStream is = getContent() ) {
+                byte[] buf = new byte[8192];
+                int n;
+                while( (n = is.read( buf )) > -1 ) {
+                    outstream.write( buf, 0, n );
+                }
+            }
+        }
+    }
+
+    public static class Builder
+    {
+
+        private int minSize = 1024;
+        private int defaultLevel = 6;
+        private int maxIdle = 64;
+        private final Map<String, Integer> levels = new HashMap<>();
+        private Predicate<ContentType> compressible = GzipVariants::isCompressible;
+
+        private Builder()
+        {
+        }
+
+        /**
+         * Responses known to be smaller than this are not compressed. Defaults to 1024.
+         *
+         * @param minSize
+         *
+         * @return
+         */
+        public Builder minSize( int minSize )
+        {
+            this.minSize = minSize;
+            return this;
+        }
+
+        /**
+         * The compression level used unless one is set for the content type. Defaults to 6.
+         *
+         * @param level 1..9
+         *
+         * @return
+         */
+        public Builder level( int level )
+        {
+            this.defaultLevel = checkLevel( level );
+            return this;
+        }
+
+        /**
+         * The compression level for a content type
+         *
+         * @param mimeType e.g. "application/json"
+         * @param level    1..9
+         *
+         * @return
+         */
+        public Builder level( String mimeType, int level )
+        {
+            levels.put( mimeType, checkLevel( level ) );
+            return this;
+        }
+
+        /**
+         * Which content types to compress. Defaults to {@link GzipVariants#isCompressible(org.apache.http.entity.ContentType)}
+         *
+         * @param compressible
+         *
+         * @return
+         */
+        public Builder compressible( Predicate<ContentType> compressible )
+        {
+            this.compressible = compressible;
+            return this;
+        }
+
+        /**
+         * The maximum number of idle Deflaters kept for each level. Defaults to 64.
+         *
+         * @param maxIdle
+         *
+         * @return
+         */
+        public Builder maxIdle( int maxIdle )
+        {
+            this.maxIdle = maxIdle;
+            return this;
+        }
+
+        private static int checkLevel( int level )
+        {
+            if( level < 1 || level > 9 ) {
+                throw new IllegalArgumentException( "Invalid compression level " + level );
+            }
+            return level;
+        }
+
+        public ResponseCompression build()
+        {
+            return new ResponseCompression( this );
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+import onl.area51.httpd.action.Action;
+import onl.area51.httpd.action.Request;
+import org.apache.http.HttpException;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.nio.util.SharedOutputBuffer;
+
+/**
+ * An entity whose content is generated by an {@link Action} as it is sent, so a large page is encoded straight to the
+ * connection as chunked output through a small buffer rather than being held in memory first.
+ * <p>
+ * Within the action {@link Request#getResponse()} returns a {@link onl.area51.httpd.action.Response} that writes to the connection. As the status
+ * and headers have already been sent by the time the action runs it cannot change them, and an exception from it can only
+ * abort the connection.
+ * <p>
+ * With the blocking engine the action runs when the entity is written. With the non-blocking engine it runs on the worker
+ * thread once the headers have been sent, with the I/O thread draining the buffer as the client accepts data. Either way
+ * the server's {@link onl.area51.httpd.action.ContextListener}'s are only ended once the action has completed, see
+ * {@link #whenComplete(onl.area51.httpd.action.Action)}.
+ * <p>
+ * The content is written with a {@link Utf8Writer} so is always UTF-8, the charset of the content type is set to match.
+ *
+ * @author peter
+ */
+public class StreamingEntity
+        extends AbstractHttpEntity
+        implements HttpAsyncContentProducer
+{
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Request request;
+    private final Action action;
+    private final List<Action> completions = new ArrayList<>();
+    private Function<OutputStream, OutputStream> encoder;
+
+    // Non-blocking state
+    private final CountDownLatch started = new CountDownLatch( 1 );
+    private SharedOutputBuffer buffer;
+    private volatile IOControl ioctrl;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    @SuppressWarnings("OverridableMethodCallInConstructor")
+    public StreamingEntity( Request request, Action action, ContentType contentType )
+    {
+        this.request = request;
+        this.action = action;
+        setContentType( contentType.withCharset( StandardCharsets.UTF_8 ).toString() );
+        setChunked( true );
+    }
+
+    /**
+     * Encode the content as it is written, e.g. to compress it. This must be called before the entity is sent.
+     *
+     * @param contentEncoding the Content-Encoding
+     * @param encoder         wraps the output, closing the returned stream must finish the encoding
+     */
+    public void setEncoder( String contentEncoding, Function<OutputStream, OutputStream> encoder )
+    {
+        setContentEncoding( contentEncoding );
+        this.encoder = encoder;
+    }
+
+    /**
+     * Run an action once the content has been generated, or failed to be, e.g. to end a scope the content must be
+     * generated within. Actions are run in the order they were added, the first failure being thrown once all have run.
+     *
+     * @param completion
+     */
+    public synchronized void whenComplete( Action completion )
+    {
+        completions.add( completion );
+    }
+
+    /**
+     * Run the completions, used when the content will never be generated, e.g. for HEAD
+     *
+     * @throws IOException
+     */
+    public void complete()
+            throws IOException
+    {
+        List<Action> l;
+        synchronized( this ) {
+            l = new ArrayList<>( completions );
+            completions.clear();
+        }
+        IOException failure = null;
+        for( Action a: l ) {
+            try {
+                a.apply( request );
+            }
+            catch( HttpException |
+                   IOException |
+                   RuntimeException ex ) {
+                if( failure == null ) {
+                    failure = ex instanceof IOException ? (IOException) ex : new IOException( ex );
+                }
+            }
+        }
+        if( failure != null ) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public boolean isRepeatable()
+    {
+        return false;
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return -1L;
+    }
+
+    @Override
+    public boolean isStreaming()
+    {
+        return true;
+    }
+
+    /**
+     * Generates the content in memory. This is only used by consumers that need a stream, the engines use
+     * {@link #writeTo(java.io.OutputStream)} or {@link #produceContent(org.apache.http.nio.ContentEncoder, org.apache.http.nio.IOControl)}.
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    @Override
+    public InputStream getContent()
+            throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        writeTo( baos );
+        return new ByteArrayInputStream( baos.toByteArray() );
+    }
+
+    @Override
+    public void writeTo( OutputStream outstream )
+            throws IOException
+    {
+        try {
+            OutputStream os = encoder == null ? outstream : encoder.apply( outstream );
+            Utf8Writer writer = new Utf8Writer( os, BUFFER_SIZE );
+            Request r = request.capture( writer );
+            action.apply( r );
+            // Closes any open elements and flushes the writer
+            r.getResponse().getEntity();
+            if( encoder != null ) {
+                // Finishes the encoding, closing the connection's stream is harmless as the engines close it anyway
+                writer.close();
+            }
+        }
+        catch( HttpException ex ) {
+            throw new IOException( ex );
+        }
+        catch( UncheckedIOException ex ) {
+            throw ex.getCause();
+        }
+        finally {
+            complete();
+        }
+    }
+
+    /**
+     * Generate the content on the current thread for the non-blocking engine. This waits until the headers have been sent
+     * and then blocks whenever the buffer is full. It returns immediately if the response has no body, e.g. for HEAD.
+     */
+    public void stream()
+    {
+        try {
+            started.await();
+            if( closed ) {
+                return;
+            }
+            writeTo( new OutputStream()
+            {
+                @Override
+                public void write( int b )
+                        throws IOException
+                {
+                    buffer().write( b );
+                }
+
+                @Override
+                public void write( byte[] b, int off, int len )
+                        throws IOException
+                {
+                    buffer().write( b, off, len );
+                }
+            } );
+            buffer().writeCompleted();
+        }
+        catch( InterruptedException ex ) {
+            abort( new InterruptedIOException() );
+            Thread.currentThread().interrupt();
+        }
+        catch( IOException |
+               RuntimeException ex ) {
+            abort( ex instanceof IOException ? (IOException) ex : new IOException( ex ) );
+        }
+        finally {
+            try {
+                // A no-op unless the content was never generated
+                complete();
+            }
+            catch( IOException ex ) {
+                abort( ex );
+            }
+        }
+    }
+
+    /**
+     * Fail the response so the engine drops the connection, the client would otherwise wait for the rest of the content
+     */
+    private void abort( IOException ex )
+    {
+        failure = ex;
+        IOControl c = ioctrl;
+        if( c != null ) {
+            c.requestOutput();
+        }
+    }
+
+    private synchronized SharedOutputBuffer buffer()
+    {
+        if( buffer == null ) {
+            buffer = new SharedOutputBuffer( BUFFER_SIZE );
+        }
+        return buffer;
+    }
+
+    @Override
+    public void produceContent( ContentEncoder encoder, IOControl ioctrl )
+            throws IOException
+    {
+        this.ioctrl = ioctrl;
+        if( failure != null ) {
+            throw failure;
+        }
+        buffer().produceContent( encoder, ioctrl );
+        started.countDown();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        closed = true;
+        buffer().shutdown();
+        started.countDown();
+    }
+}
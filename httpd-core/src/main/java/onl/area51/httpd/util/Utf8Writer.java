@@ -0,0 +1,546 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * A {@link Writer} that encodes straight to UTF-8 bytes in memory, replacing a {@link java.io.CharArrayWriter} whose content
+ * would later be copied to a String and then encoded again.
+ * <p>
+ * Markup is mostly ASCII so that is copied a byte per char, only other characters going through the full encoding.
+ * Unpaired surrogates are written as '?' as {@link String#getBytes(java.nio.charset.Charset)} does.
+ * <p>
+ * A writer created with {@link #Utf8Writer(java.io.OutputStream, int)} instead writes to a stream whenever it's buffer
+ * fills, as used by {@link StreamingEntity}. As the Writer methods here do not throw IOException a failure writing to the
+ * stream is thrown as an {@link UncheckedIOException}.
+ *
+ * @author peter
+ */
+public class Utf8Writer
+        extends Writer
+{
+
+    private static final int DEFAULT_SIZE = 1024;
+
+    private final BufferPool pool;
+    private final OutputStream out;
+    private byte[] buf;
+    private int count;
+    private boolean ascii = true;
+    // High surrogate written without it's low surrogate yet
+    private char high;
+
+    public Utf8Writer()
+    {
+        this( DEFAULT_SIZE );
+    }
+
+    public Utf8Writer( int size )
+    {
+        pool = null;
+        out = null;
+        buf = new byte[size];
+    }
+
+    /**
+     * A writer whose buffer comes from a pool. Once {@link #toEntity(org.apache.http.entity.ContentType)} has been called
+     * the buffer belongs to the entity which returns it to the pool once it has been sent, otherwise {@link #close()}
+     * returns it.
+     *
+     * @param pool
+     */
+    public Utf8Writer( BufferPool pool )
+    {
+        this.pool = pool;
+        out = null;
+        buf = pool.acquire( DEFAULT_SIZE );
+    }
+
+    /**
+     * A writer which writes to a stream each time it's buffer fills. The buffer only grows if a single write is larger
+     * than it. Only the Writer methods and {@link #writeUtf8(byte[], int, int)} may be used.
+     *
+     * @param out  stream to write to
+     * @param size buffer size
+     */
+    public Utf8Writer( OutputStream out, int size )
+    {
+        pool = null;
+        this.out = out;
+        buf = new byte[size];
+    }
+
+    private void ensure( int n )
+    {
+        if( buf == null ) {
+            throw new IllegalStateException( "Writer closed" );
+        }
+        if( count + n > buf.length && out != null && count > 0 ) {
+            drain();
+        }
+        if( count + n > buf.length ) {
+            int size = Math.max( buf.length << 1, count + n );
+            if( pool == null ) {
+                buf = Arrays.copyOf( buf, size );
+            }
+            else {
+                byte[] b = pool.acquire( size );
+                System.arraycopy( buf, 0, b, 0, count );
+                pool.release( buf );
+                buf = b;
+            }
+        }
+    }
+
+    @Override
+    public void write( int c )
+    {
+        if( c < 0x80 && high == 0 ) {
+            ensure( 1 );
+            buf[count++] = (byte) c;
+        }
+        else {
+            ensure( 4 );
+            encode( (char) c );
+        }
+    }
+
+    @Override
+    public void write( char[] cbuf, int off, int len )
+    {
+        ensure( len );
+        for( int i = off, end = off + len; i < end; i++ ) {
+            char c = cbuf[i];
+            if( c < 0x80 && high == 0 ) {
+                buf[count++] = (byte) c;
+            }
+            else {
+                ensure( 4 + end - i );
+                encode( c );
+            }
+        }
+    }
+
+    @Override
+    public void write( String str, int off, int len )
+    {
+        append( str, off, off + len );
+    }
+
+    @Override
+    public Utf8Writer append( CharSequence csq )
+    {
+        CharSequence s = csq == null ? "null" : csq;
+        return append( s, 0, s.length() );
+    }
+
+    @Override
+    public Utf8Writer append( CharSequence csq, int start, int end )
+    {
+        CharSequence s = csq == null ? "null" : csq;
+        ensure( end - start );
+        for( int i = start; i < end; i++ ) {
+            char c = s.charAt( i );
+            if( c < 0x80 && high == 0 ) {
+                buf[count++] = (byte) c;
+            }
+            else {
+                ensure( 4 + end - i );
+                encode( c );
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public Utf8Writer append( char c )
+    {
+        write( c );
+        return this;
+    }
+
+    /**
+     * Encode a single character, the buffer must have room for 4 bytes
+     */
+    private void encode( char c )
+    {
+        if( high != 0 ) {
+            char h = high;
+            high = 0;
+            if( Character.isLowSurrogate( c ) ) {
+                int cp = Character.toCodePoint( h, c );
+                buf[count++] = (byte) (0xf0 | (cp >> 18));
+                buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (cp & 0x3f));
+                return;
+            }
+            buf[count++] = '?';
+            ensure( 3 );
+        }
+
+        if( c < 0x80 ) {
+            buf[count++] = (byte) c;
+            return;
+        }
+
+        ascii = false;
+        if( c < 0x800 ) {
+            buf[count++] = (byte) (0xc0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+        else if( Character.isHighSurrogate( c ) ) {
+            high = c;
+        }
+        else if( Character.isLowSurrogate( c ) ) {
+            buf[count++] = '?';
+        }
+        else {
+            buf[count++] = (byte) (0xe0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    /**
+     * Append bytes that are already UTF-8 encoded
+     *
+     * @param b
+     * @param off
+     * @param len
+     */
+    public void writeUtf8( byte[] b, int off, int len )
+    {
+        completeSurrogate();
+        if( out != null && buf != null && len > buf.length ) {
+            // Too large to buffer so write it straight through
+            drain();
+            try {
+                out.write( b, off, len );
+            }
+            catch( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
+            return;
+        }
+        ensure( len );
+        for( int i = off, end = off + len; ascii && i < end; i++ ) {
+            ascii = b[i] >= 0;
+        }
+        System.arraycopy( b, off, buf, count, len );
+        count += len;
+    }
+
+    private void completeSurrogate()
+    {
+        if( high != 0 ) {
+            high = 0;
+            ensure( 1 );
+            buf[count++] = '?';
+        }
+    }
+
+    /**
+     * Has only ASCII been written, in which case the content is the same in any ASCII compatible charset
+     *
+     * @return
+     */
+    public boolean isAscii()
+    {
+        return ascii;
+    }
+
+    public int size()
+    {
+        return count + (high == 0 ? 0 : 1);
+    }
+
+    public void reset()
+    {
+        ensure( 0 );
+        count = 0;
+        ascii = true;
+        high = 0;
+    }
+
+    /**
+     * The content, a copy of the internal buffer
+     *
+     * @return
+     */
+    public byte[] toByteArray()
+    {
+        ensure( 0 );
+        completeSurrogate();
+        return Arrays.copyOf( buf, count );
+    }
+
+    public void writeTo( OutputStream os )
+            throws IOException
+    {
+        ensure( 0 );
+        completeSurrogate();
+        os.write( buf, 0, count );
+    }
+
+    /**
+     * An entity of the content.
+     * <p>
+     * When the bytes are already correct for the content type's charset, which defaults to ISO-8859-1 as with
+     * {@link StringEntity}, the entity shares this writer's buffer so it must not be written to afterwards. For a pooled
+     * writer the entity takes the buffer, returning it to the pool once it has been sent, so this writer cannot be used
+     * again.
+     *
+     * @param contentType
+     *
+     * @return
+     */
+    public HttpEntity toEntity( ContentType contentType )
+    {
+        ensure( 0 );
+        completeSurrogate();
+        ContentType ct = contentType == null ? ContentType.DEFAULT_TEXT : contentType;
+        Charset cs = ct.getCharset() == null ? HTTP.DEF_CONTENT_CHARSET : ct.getCharset();
+        if( !cs.equals( StandardCharsets.UTF_8 ) && !(ascii && isAsciiCompatible( cs )) ) {
+            HttpEntity entity = new StringEntity( toString(), ct );
+            close();
+            return entity;
+        }
+        if( pool == null ) {
+            return new ByteArrayEntity( buf, 0, count, ct );
+        }
+        HttpEntity entity = new PooledEntity( buf, count, ct, pool );
+        buf = null;
+        return entity;
+    }
+
+    /**
+     * An entity of the content which holds no pooled buffer, for a response whose entity is never sent, e.g. to a HEAD
+     * request, so would never return it. A pooled buffer is copied and returned to the pool straight away.
+     *
+     * @param contentType
+     *
+     * @return
+     */
+    public HttpEntity toUnpooledEntity( ContentType contentType )
+    {
+        HttpEntity entity = toEntity( contentType );
+        if( entity instanceof PooledEntity ) {
+            PooledEntity pooled = (PooledEntity) entity;
+            ByteArrayEntity copy = new ByteArrayEntity( Arrays.copyOf( pooled.buffer(), pooled.length ) );
+            copy.setContentType( pooled.getContentType() );
+            pooled.release();
+            return copy;
+        }
+        return entity;
+    }
+
+    private static boolean isAsciiCompatible( Charset cs )
+    {
+        return cs.equals( StandardCharsets.ISO_8859_1 ) || cs.equals( StandardCharsets.US_ASCII ) || cs.name().startsWith( "windows-125" );
+    }
+
+    @Override
+    public String toString()
+    {
+        ensure( 0 );
+        String s = new String( buf, 0, count, StandardCharsets.UTF_8 );
+        return high == 0 ? s : s + '?';
+    }
+
+    /**
+     * Write the buffer to the stream
+     */
+    private void drain()
+    {
+        try {
+            out.write( buf, 0, count );
+        }
+        catch( IOException ex ) {
+            throw new UncheckedIOException( ex );
+        }
+        count = 0;
+    }
+
+    /**
+     * For a writer to a stream write what has been buffered and flush the stream, otherwise this does nothing
+     */
+    @Override
+    public void flush()
+    {
+        if( out != null && buf != null ) {
+            drain();
+            try {
+                out.flush();
+            }
+            catch( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
+        }
+    }
+
+    /**
+     * Returns a pooled buffer to the pool, or for a writer to a stream writes what is buffered and closes the stream.
+     * This writer cannot be used afterwards.
+     */
+    @Override
+    public void close()
+    {
+        if( out != null && buf != null ) {
+            completeSurrogate();
+            drain();
+            buf = null;
+            try {
+                out.close();
+            }
+            catch( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
+        }
+        if( pool != null && buf != null ) {
+            pool.release( buf );
+            buf = null;
+        }
+    }
+
+    /**
+     * An entity holding a pooled buffer which is returned to the pool once it has been written, it's content stream is
+     * closed or, with the non-blocking engine, the exchange is closed even if nothing was sent. It can only be sent once.
+     */
+    private static class PooledEntity
+            extends AbstractHttpEntity
+            implements HttpAsyncContentProducer
+    {
+
+        private final int length;
+        private final BufferPool pool;
+        private byte[] buf;
+        private ByteBuffer producing;
+
+        @SuppressWarnings("OverridableMethodCallInConstructor")
+        PooledEntity( byte[] buf, int length, ContentType contentType, BufferPool pool )
+        {
+            this.buf = buf;
+            this.length = length;
+            this.pool = pool;
+            setContentType( contentType.toString() );
+        }
+
+        private synchronized byte[] buffer()
+        {
+            if( buf == null ) {
+                throw new IllegalStateException( "Content already consumed" );
+            }
+            return buf;
+        }
+
+        private synchronized void release()
+        {
+            if( buf != null ) {
+                pool.release( buf );
+                buf = null;
+            }
+        }
+
+        @Override
+        public boolean isRepeatable()
+        {
+            return false;
+        }
+
+        @Override
+        public long getContentLength()
+        {
+            return length;
+        }
+
+        @Override
+        public InputStream getContent()
+        {
+            return new ByteArrayInputStream( buffer(), 0, length )
+            {
+                @Override
+                public void close()
+                {
+                    release();
+                }
+            };
+        }
+
+        @Override
+        public void writeTo( OutputStream outstream )
+                throws IOException
+        {
+            try {
+                outstream.write( buffer(), 0, length );
+                outstream.flush();
+            }
+            finally {
+                release();
+            }
+        }
+
+        @Override
+        public void produceContent( ContentEncoder encoder, IOControl ioctrl )
+                throws IOException
+        {
+            if( producing == null ) {
+                producing = ByteBuffer.wrap( buffer(), 0, length );
+            }
+
+            if( producing.hasRemaining() ) {
+                encoder.write( producing );
+            }
+
+            if( !producing.hasRemaining() ) {
+                encoder.complete();
+                close();
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            producing = null;
+            release();
+        }
+
+        @Override
+        public boolean isStreaming()
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import onl.area51.httpd.action.PathParams;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Route precedence and path parameter capture
+ *
+ * @author peter
+ */
+public class RouterTest
+{
+
+    private Router router;
+    private HttpContext context;
+
+    @Before
+    public void setUp()
+    {
+        Map<String, HttpRequestHandler> handlers = new LinkedHashMap<>();
+        for( String pattern: new String[]{
+            "*",
+            "/*",
+            "/hello/*",
+            "/hello/world",
+            "/users/{id}",
+            "/users/{id}/orders/{oid}",
+            "/users/me",
+            "/users/{id}/*",
+            "*.gif",
+            "/static/*",
+            "/help"
+        } ) {
+            handlers.put( pattern, ( req, resp, ctx ) -> resp.setReasonPhrase( pattern ) );
+        }
+        router = new Router( handlers );
+    }
+
+    private String route( String uri )
+            throws Exception
+    {
+        context = new BasicHttpContext();
+        HttpResponse response = new BasicHttpResponse( HttpVersion.HTTP_1_1, HttpStatus.SC_OK, null );
+        router.handle( new BasicHttpRequest( "GET", uri ), response, context );
+        return response.getStatusLine().getReasonPhrase();
+    }
+
+    private PathParams params()
+    {
+        return (PathParams) context.getAttribute( PathParams.ATTRIBUTE );
+    }
+
+    @Test
+    public void exactBeatsPrefix()
+            throws Exception
+    {
+        assertEquals( "/hello/world", route( "/hello/world" ) );
+        assertEquals( "/hello/*", route( "/hello/world2" ) );
+        assertEquals( "/hello/*", route( "/hello/" ) );
+        assertEquals( "/help", route( "/help" ) );
+    }
+
+    @Test
+    public void longestPrefixWins()
+            throws Exception
+    {
+        assertEquals( "/*", route( "/" ) );
+        assertEquals( "/*", route( "/hello" ) );
+        assertEquals( "/*", route( "/hel" ) );
+        assertEquals( "/static/*", route( "/static/a.css" ) );
+        assertEquals( "*", route( "http://host/x" ) );
+    }
+
+    @Test
+    public void suffixOnlyWhenLongerThanPrefix()
+            throws Exception
+    {
+        assertEquals( "*.gif", route( "/a.gif" ) );
+        assertEquals( "/static/*", route( "/static/a.gif" ) );
+    }
+
+    @Test
+    public void literalBeatsTemplate()
+            throws Exception
+    {
+        assertEquals( "/users/me", route( "/users/me" ) );
+        assertNull( params() );
+    }
+
+    @Test
+    public void templateCapture()
+            throws Exception
+    {
+        assertEquals( "/users/{id}", route( "/users/42" ) );
+        assertEquals( 1, params().size() );
+        assertEquals( "42", params().get( "id" ) );
+        assertEquals( 42, params().getInt( "id", 0 ) );
+
+        assertEquals( "/users/{id}/orders/{oid}", route( "/users/42/orders/7?x=1" ) );
+        assertEquals( "42", params().get( "id" ) );
+        assertEquals( 7L, params().getLong( "oid", 0 ) );
+        assertFalse( params().contains( "x" ) );
+    }
+
+    @Test
+    public void templatePrefix()
+            throws Exception
+    {
+        assertEquals( "/users/{id}/*", route( "/users/42/x/y" ) );
+        assertEquals( "42", params().get( "id" ) );
+    }
+
+    @Test
+    public void templateNeedsNonEmptySegment()
+            throws Exception
+    {
+        assertEquals( "/*", route( "/users/" ) );
+    }
+
+    @Test
+    public void capturedValueIsDecoded()
+            throws Exception
+    {
+        assertEquals( "/users/{id}", route( "/users/a%20b" ) );
+        assertEquals( "a b", params().get( "id" ) );
+    }
+
+    @Test
+    public void noRoute()
+            throws Exception
+    {
+        router = new Router( new LinkedHashMap<>() );
+        HttpResponse response = new BasicHttpResponse( HttpVersion.HTTP_1_1, HttpStatus.SC_OK, null );
+        router.handle( new BasicHttpRequest( "GET", "/x" ), response, new BasicHttpContext() );
+        assertEquals( HttpStatus.SC_NOT_IMPLEMENTED, response.getStatusLine().getStatusCode() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void templateMustBeWholeSegment()
+    {
+        Map<String, HttpRequestHandler> handlers = new LinkedHashMap<>();
+        handlers.put( "/users/x{id}", ( req, resp, ctx ) -> {
+        } );
+        new Router( handlers );
+    }
+}
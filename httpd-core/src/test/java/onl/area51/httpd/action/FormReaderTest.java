@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding of form bodies, in particular %-escapes that are invalid or split across reads
+ *
+ * @author peter
+ */
+public class FormReaderTest
+{
+
+    private static List<String> read( InputStream in, Charset charset )
+            throws IOException
+    {
+        List<String> l = new ArrayList<>();
+        try( FormReader form = new FormReader( in, charset ) ) {
+            while( form.next() ) {
+                l.add( form.getName() + "=" + form.getValue() );
+            }
+        }
+        return l;
+    }
+
+    private static List<String> read( String body )
+            throws IOException
+    {
+        return read( new ByteArrayInputStream( body.getBytes( StandardCharsets.ISO_8859_1 ) ), StandardCharsets.UTF_8 );
+    }
+
+    private static List<String> list( String... s )
+    {
+        List<String> l = new ArrayList<>();
+        for( String e: s ) {
+            l.add( e );
+        }
+        return l;
+    }
+
+    @Test
+    public void parameters()
+            throws IOException
+    {
+        assertEquals( list( "a=1", "b=2" ), read( "a=1&b=2" ) );
+        assertEquals( list(), read( "" ) );
+    }
+
+    @Test
+    public void plusAndEscapes()
+            throws IOException
+    {
+        assertEquals( list( "a b=c d", "e&f=g=h" ), read( "a+b=c%20d&e%26f=g%3Dh" ) );
+    }
+
+    @Test
+    public void emptyAndMissing()
+            throws IOException
+    {
+        assertEquals( list( "a=", "b=", "=v", "c=1" ), read( "a=&b&&=v&c=1&" ) );
+        assertEquals( list( "a==b" ), read( "a==b" ) );
+    }
+
+    @Test
+    public void invalidEscapesAreKept()
+            throws IOException
+    {
+        assertEquals( list( "a=%zz", "b=%4" ), read( "a=%zz&b=%4" ) );
+        assertEquals( list( "a=%", "b=1" ), read( "a=%&b=1" ) );
+        assertEquals( list( "a=%4", "b=1" ), read( "a=%4&b=1" ) );
+        assertEquals( list( "a=%A" ), read( "a=%%41" ) );
+        assertEquals( list( "a=%g1" ), read( "a=%g1" ) );
+    }
+
+    @Test
+    public void escapedUtf8()
+            throws IOException
+    {
+        assertEquals( list( "q=caf\u00e9 \u20ac" ), read( "q=caf%C3%A9+%e2%82%ac" ) );
+    }
+
+    @Test
+    public void charset()
+            throws IOException
+    {
+        assertEquals( list( "q=caf\u00e9" ),
+                      read( new ByteArrayInputStream( "q=caf%E9".getBytes( StandardCharsets.ISO_8859_1 ) ), StandardCharsets.ISO_8859_1 ) );
+    }
+
+    @Test
+    public void escapeSplitAcrossReads()
+            throws IOException
+    {
+        // One byte per read so every escape spans reads
+        byte[] b = "a=%41%zz%4&b=%C3%A9".getBytes( StandardCharsets.ISO_8859_1 );
+        InputStream in = new ByteArrayInputStream( b )
+        {
+            @Override
+            public synchronized int read( byte[] buf, int off, int len )
+            {
+                return super.read( buf, off, Math.min( len, 1 ) );
+            }
+        };
+        assertEquals( list( "a=A%zz%4", "b=\u00e9" ), read( in, StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void escapeSplitAcrossBuffer()
+            throws IOException
+    {
+        // Longer than the reader's buffer so an escape straddles a refill
+        StringBuilder sb = new StringBuilder( "a=" );
+        while( sb.length() < 8191 ) {
+            sb.append( 'x' );
+        }
+        String prefix = sb.toString();
+        assertEquals( list( prefix + "A", "b=2" ), read( prefix + "%41&b=2" ) );
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding and parsing of path parameters
+ *
+ * @author peter
+ */
+public class PathParamsTest
+{
+
+    private static String decode( String s )
+    {
+        return PathParams.decode( s, 0, s.length() );
+    }
+
+    @Test
+    public void plain()
+    {
+        assertEquals( "abc", decode( "abc" ) );
+        assertEquals( "b", PathParams.decode( "abc", 1, 2 ) );
+    }
+
+    @Test
+    public void escapes()
+    {
+        assertEquals( "a b", decode( "a%20b" ) );
+        assertEquals( "ABC", decode( "%41%42C" ) );
+        assertEquals( "A", PathParams.decode( "xx%41yy", 2, 5 ) );
+    }
+
+    @Test
+    public void plusIsNotSpace()
+    {
+        assertEquals( "a+b", decode( "a+b" ) );
+    }
+
+    @Test
+    public void escapedUtf8()
+    {
+        assertEquals( "\u00e9", decode( "%C3%A9" ) );
+        assertEquals( "\u20ac!", decode( "%e2%82%ac!" ) );
+    }
+
+    @Test
+    public void invalidEscapesAreKept()
+    {
+        assertEquals( "%zz%4", decode( "%zz%4" ) );
+        assertEquals( "100%", decode( "100%" ) );
+        assertEquals( "%A", decode( "%%41" ) );
+    }
+
+    @Test
+    public void nonAsciiSameWithOrWithoutEscapes()
+    {
+        assertEquals( "caf\u00e9", decode( "caf\u00e9" ) );
+        assertEquals( "caf\u00e9 x", decode( "caf\u00e9%20x" ) );
+        assertEquals( "\u20ac \u20ac", decode( "\u20ac%20%E2%82%AC" ) );
+    }
+
+    @Test
+    public void parseLong()
+    {
+        assertEquals( 42L, PathParams.parseLong( "/42/", 1, 3 ) );
+        assertEquals( -7L, PathParams.parseLong( "-7", 0, 2 ) );
+        assertEquals( 7L, PathParams.parseLong( "+7", 0, 2 ) );
+        assertEquals( Long.MIN_VALUE, PathParams.parseLong( "-9223372036854775808", 0, 20 ) );
+        assertEquals( Long.MAX_VALUE, PathParams.parseLong( "9223372036854775807", 0, 19 ) );
+    }
+
+    @Test
+    public void parseLongRejects()
+    {
+        for( String s: new String[]{"", "-", "+", "x", "1x", "9223372036854775808", "-9223372036854775809"} ) {
+            try {
+                PathParams.parseLong( s, 0, s.length() );
+                fail( s );
+            }
+            catch( NumberFormatException ex ) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseIntOverflow()
+    {
+        PathParams.parseInt( "2147483648", 0, 10 );
+    }
+
+    @Test
+    public void defaults()
+    {
+        PathParams p = new PathParams( "/users/42", new String[]{"id"}, new int[]{7, 9} );
+        assertEquals( 42, p.getInt( "id", 0 ) );
+        assertEquals( -1, p.getInt( "missing", -1 ) );
+        assertNull( p.get( "missing" ) );
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.action;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing of the query string and it's typed accessors
+ *
+ * @author peter
+ */
+public class QueryStringTest
+{
+
+    @Test
+    public void noQuery()
+    {
+        QueryString q = new QueryString( "/path" );
+        assertEquals( 0, q.size() );
+        assertNull( q.get( "a" ) );
+        assertTrue( q.getNames().isEmpty() );
+        assertEquals( 5, q.getInt( "a", 5 ) );
+    }
+
+    @Test
+    public void parameters()
+    {
+        QueryString q = new QueryString( "/p?a=1&&b&c=&=x#frag=1" );
+        assertEquals( "1", q.get( "a" ) );
+        assertEquals( "", q.get( "b" ) );
+        assertEquals( "", q.get( "c" ) );
+        assertEquals( "x", q.get( "" ) );
+        assertNull( q.get( "frag" ) );
+        assertEquals( Arrays.asList( "a", "b", "c", "" ), Arrays.asList( q.getNames().toArray() ) );
+    }
+
+    @Test
+    public void decoding()
+    {
+        QueryString q = new QueryString( "/p?a+b=c+d&e%26f=%3D&u=%C3%A9%E2%82%AC&bad=%zz%4" );
+        assertEquals( "c d", q.get( "a b" ) );
+        assertEquals( "=", q.get( "e&f" ) );
+        assertEquals( "\u00e9\u20ac", q.get( "u" ) );
+        assertEquals( "%zz%4", q.get( "bad" ) );
+    }
+
+    @Test
+    public void multipleValues()
+    {
+        QueryString q = new QueryString( "/p?a=1&b=2&a=3" );
+        assertEquals( "1", q.get( "a" ) );
+        assertEquals( Arrays.asList( "1", "3" ), q.getAll( "a" ) );
+        assertEquals( Collections.emptyList(), q.getAll( "z" ) );
+        assertEquals( Arrays.asList( "a", "b" ), Arrays.asList( q.getNames().toArray() ) );
+    }
+
+    @Test
+    public void numbers()
+    {
+        QueryString q = new QueryString( "/p?i=42&n=-9223372036854775808&e=%2D5&empty=&d=1.5" );
+        assertEquals( 42, q.getInt( "i", 0 ) );
+        assertEquals( Long.MIN_VALUE, q.getLong( "n", 0 ) );
+        assertEquals( -5L, q.getLong( "e", 0 ) );
+        assertEquals( 7, q.getInt( "empty", 7 ) );
+        assertEquals( 1.5, q.getDouble( "d", 0 ), 0 );
+    }
+
+    @Test
+    public void invalidNumbers()
+    {
+        QueryString q = new QueryString( "/p?x=x&big=2147483648&huge=9223372036854775808&minus=-" );
+        for( String n: new String[]{"x", "big", "huge", "minus"} ) {
+            try {
+                q.getInt( n, 0 );
+                fail( n );
+            }
+            catch( NumberFormatException ex ) {
+                // expected
+            }
+        }
+        assertEquals( 2147483648L, q.getLong( "big", 0 ) );
+    }
+
+    @Test
+    public void booleans()
+    {
+        QueryString q = new QueryString( "/p?a=TRUE&b=on&c=Yes&d=1&e=0&f=no&g=%74rue" );
+        for( String n: new String[]{"a", "b", "c", "d", "g"} ) {
+            assertTrue( n, q.getBoolean( n, false ) );
+        }
+        for( String n: new String[]{"e", "f"} ) {
+            assertFalse( n, q.getBoolean( n, true ) );
+        }
+        assertTrue( q.getBoolean( "missing", true ) );
+    }
+
+    @Test
+    public void enums()
+    {
+        QueryString q = new QueryString( "/p?u=SECONDS&e=%44AYS&bad=seconds" );
+        assertEquals( TimeUnit.SECONDS, q.getEnum( "u", TimeUnit.class, null ) );
+        assertEquals( TimeUnit.DAYS, q.getEnum( "e", TimeUnit.class, null ) );
+        assertEquals( TimeUnit.HOURS, q.getEnum( "missing", TimeUnit.class, TimeUnit.HOURS ) );
+        try {
+            q.getEnum( "bad", TimeUnit.class, null );
+            fail();
+        }
+        catch( IllegalArgumentException ex ) {
+            // expected
+        }
+    }
+}
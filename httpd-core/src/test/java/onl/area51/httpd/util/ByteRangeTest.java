@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parsing of Range headers
+ *
+ * @author peter
+ */
+public class ByteRangeTest
+{
+
+    private static void assertRange( long first, long last, ByteRange range )
+    {
+        assertEquals( first, range.getFirst() );
+        assertEquals( last, range.getLast() );
+    }
+
+    @Test
+    public void single()
+    {
+        List<ByteRange> ranges = ByteRange.parse( "bytes=0-99", 1000 );
+        assertEquals( 1, ranges.size() );
+        assertRange( 0, 99, ranges.get( 0 ) );
+        assertEquals( 100, ranges.get( 0 ).getLength() );
+        assertEquals( "bytes 0-99/1000", ranges.get( 0 ).contentRange( 1000 ) );
+    }
+
+    @Test
+    public void openEnded()
+    {
+        assertRange( 900, 999, ByteRange.parse( "bytes=900-", 1000 ).get( 0 ) );
+    }
+
+    @Test
+    public void lastClampedToSize()
+    {
+        assertRange( 900, 999, ByteRange.parse( "bytes=900-5000", 1000 ).get( 0 ) );
+    }
+
+    @Test
+    public void suffix()
+    {
+        assertRange( 900, 999, ByteRange.parse( "bytes=-100", 1000 ).get( 0 ) );
+        // Longer than the entity is the whole entity
+        assertRange( 0, 999, ByteRange.parse( "bytes=-5000", 1000 ).get( 0 ) );
+    }
+
+    @Test
+    public void unsatisfiable()
+    {
+        assertTrue( ByteRange.parse( "bytes=1000-", 1000 ).isEmpty() );
+        assertTrue( ByteRange.parse( "bytes=-0", 1000 ).isEmpty() );
+        assertTrue( ByteRange.parse( "bytes=-10", 0 ).isEmpty() );
+    }
+
+    @Test
+    public void unsatisfiableDropped()
+    {
+        List<ByteRange> ranges = ByteRange.parse( "bytes=2000-3000, 0-9", 1000 );
+        assertEquals( 1, ranges.size() );
+        assertRange( 0, 9, ranges.get( 0 ) );
+    }
+
+    @Test
+    public void overlappingKeptInOrder()
+    {
+        List<ByteRange> ranges = ByteRange.parse( "bytes=0-499, 400-999, -200", 1000 );
+        assertEquals( 3, ranges.size() );
+        assertRange( 0, 499, ranges.get( 0 ) );
+        assertRange( 400, 999, ranges.get( 1 ) );
+        assertRange( 800, 999, ranges.get( 2 ) );
+    }
+
+    @Test
+    public void maxRanges()
+    {
+        StringBuilder sb = new StringBuilder( "bytes=0-0" );
+        for( int i = 1; i < ByteRange.MAX_RANGES; i++ ) {
+            sb.append( ',' ).append( i ).append( '-' ).append( i );
+        }
+        assertEquals( ByteRange.MAX_RANGES, ByteRange.parse( sb.toString(), 1000 ).size() );
+
+        // One more and the header is ignored
+        sb.append( ",100-100" );
+        assertNull( ByteRange.parse( sb.toString(), 1000 ) );
+    }
+
+    @Test
+    public void invalidIgnored()
+    {
+        assertNull( ByteRange.parse( null, 1000 ) );
+        assertNull( ByteRange.parse( "items=0-1", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=5-2", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=a-b", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=10", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=0-1,x", 1000 ) );
+    }
+
+    @Test
+    public void unitIsCaseInsensitive()
+    {
+        assertRange( 0, 9, ByteRange.parse( " Bytes=0-9 ", 1000 ).get( 0 ) );
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Accept-Encoding negotiation and variant entity tags
+ *
+ * @author peter
+ */
+public class GzipVariantsTest
+{
+
+    private static String encoding( String acceptEncoding )
+    {
+        return GzipVariants.encoding( acceptEncoding, true );
+    }
+
+    @Test
+    public void none()
+    {
+        assertNull( encoding( null ) );
+        assertNull( encoding( "" ) );
+        assertNull( encoding( "identity" ) );
+        assertNull( encoding( "gzipx, br" ) );
+    }
+
+    @Test
+    public void prefersGzip()
+    {
+        assertEquals( "gzip", encoding( "deflate, gzip" ) );
+        assertEquals( "gzip", encoding( "  GZIP  " ) );
+        assertEquals( "gzip", encoding( "x-gzip" ) );
+        assertEquals( "deflate", encoding( "deflate" ) );
+        assertNull( GzipVariants.encoding( "deflate", false ) );
+    }
+
+    @Test
+    public void zeroQuality()
+    {
+        assertEquals( "deflate", encoding( "gzip;q=0, deflate" ) );
+        assertEquals( "deflate", encoding( "gzip;Q=0, deflate" ) );
+        assertEquals( "deflate", encoding( "gzip; q = 0.000 , deflate" ) );
+        assertEquals( "deflate", encoding( "gzip;level=1;q=0., deflate" ) );
+        assertNull( encoding( "gzip;q=0, deflate;q=0" ) );
+        assertEquals( "gzip", encoding( "gzip;q=0.001" ) );
+        assertEquals( "gzip", encoding( "gzip;q=1" ) );
+    }
+
+    @Test
+    public void explicitBeatsAny()
+    {
+        assertEquals( "gzip", encoding( "*" ) );
+        assertEquals( "gzip", encoding( "*;q=0, gzip" ) );
+        assertEquals( "deflate", encoding( "gzip;q=0, *" ) );
+        assertEquals( "deflate", encoding( "deflate, *;q=0" ) );
+        assertEquals( "gzip", encoding( "gzip;q=0, x-gzip" ) );
+    }
+
+    @Test
+    public void etag()
+    {
+        assertEquals( "\"abc-gz\"", GzipVariants.etag( "\"abc\"" ) );
+        assertEquals( "W/\"abc-gz\"", GzipVariants.etag( "W/\"abc\"" ) );
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Utf8Writer must encode exactly as {@link String#getBytes(java.nio.charset.Charset)} does, including unpaired surrogates
+ *
+ * @author peter
+ */
+public class Utf8WriterTest
+{
+
+    private static final String PAIR = "\ud83d\ude00";
+    private static final char HIGH = '\ud83d';
+    private static final char LOW = '\ude00';
+
+    private static final String[] SAMPLES = {
+        "",
+        "plain ascii <p>",
+        "caf\u00e9 \u20ac",
+        PAIR,
+        "a" + PAIR + "b",
+        "a" + HIGH,
+        "a" + HIGH + "b",
+        "a" + LOW + "b",
+        LOW + PAIR,
+        "" + HIGH + HIGH + LOW,
+        "" + LOW + HIGH,
+        "" + HIGH + '\u00e9'
+    };
+
+    private static void assertEncoded( String s, Utf8Writer w )
+    {
+        assertArrayEquals( s, s.getBytes( StandardCharsets.UTF_8 ), w.toByteArray() );
+    }
+
+    @Test
+    public void writeString()
+            throws IOException
+    {
+        for( String s: SAMPLES ) {
+            Utf8Writer w = new Utf8Writer( 4 );
+            w.write( s );
+            assertEncoded( s, w );
+        }
+    }
+
+    @Test
+    public void writeChars()
+    {
+        for( String s: SAMPLES ) {
+            Utf8Writer w = new Utf8Writer();
+            for( int i = 0; i < s.length(); i++ ) {
+                w.write( s.charAt( i ) );
+            }
+            assertEncoded( s, w );
+        }
+    }
+
+    @Test
+    public void appendCharSequence()
+    {
+        for( String s: SAMPLES ) {
+            Utf8Writer w = new Utf8Writer();
+            w.append( new StringBuilder( s ) );
+            assertEncoded( s, w );
+        }
+    }
+
+    @Test
+    public void pairSplitAcrossWrites()
+            throws IOException
+    {
+        Utf8Writer w = new Utf8Writer();
+        w.write( "a" + HIGH );
+        w.write( LOW + "b" );
+        assertEncoded( "a" + PAIR + "b", w );
+    }
+
+    @Test
+    public void pendingHighSurrogate()
+            throws IOException
+    {
+        Utf8Writer w = new Utf8Writer();
+        w.write( "a" + HIGH );
+        // Counted and shown as the '?' it will be written as if no low surrogate follows
+        assertEquals( 2, w.size() );
+        assertEquals( "a?", w.toString() );
+
+        // Pre-encoded bytes cannot complete the pair
+        w = new Utf8Writer();
+        w.write( HIGH );
+        w.writeUtf8( new byte[]{'x'}, 0, 1 );
+        assertArrayEquals( new byte[]{'?', 'x'}, w.toByteArray() );
+    }
+
+    @Test
+    public void ascii()
+            throws IOException
+    {
+        Utf8Writer w = new Utf8Writer();
+        w.write( "abc" );
+        assertTrue( w.isAscii() );
+        w.write( '\u00e9' );
+        assertFalse( w.isAscii() );
+        w.reset();
+        assertTrue( w.isAscii() );
+        assertEquals( 0, w.size() );
+    }
+
+    @Test
+    public void streamed()
+    {
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < 1000; i++ ) {
+            sb.append( "caf\u00e9 " ).append( PAIR ).append( HIGH );
+        }
+        String s = sb.toString();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Utf8Writer w = new Utf8Writer( bos, 16 );
+        for( int i = 0; i < s.length(); i += 7 ) {
+            w.write( s, i, Math.min( 7, s.length() - i ) );
+        }
+        byte[] big = new byte[100];
+        Arrays.fill( big, (byte) 'z' );
+        w.writeUtf8( big, 0, big.length );
+        w.close();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        byte[] b = s.getBytes( StandardCharsets.UTF_8 );
+        expected.write( b, 0, b.length );
+        expected.write( big, 0, big.length );
+        assertArrayEquals( expected.toByteArray(), bos.toByteArray() );
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedStream()
+    {
+        Utf8Writer w = new Utf8Writer( new ByteArrayOutputStream(), 16 );
+        w.close();
+        w.write( 'a' );
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 peter.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package onl.area51.httpd.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import javax.json.Json;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonStructure;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import onl.area51.httpd.action.Request;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Read Json request bodies.
+ * <p>
+ * The body is parsed as it is read from {@link Request#getBodyStream(long)} so it is never held in memory as a whole,
+ * and a body larger than the limit fails with 413 Request Entity Too Large.
+ *
+ * @author peter
+ */
+public final class JsonBody
+{
+
+    private static final JsonParserFactory PARSERS = Json.createParserFactory( null );
+    private static final JsonReaderFactory READERS = Json.createReaderFactory( null );
+
+    private JsonBody()
+    {
+    }
+
+    /**
+     * Stream the request body, limited by {@link Request#getMaxBodySize()}
+     *
+     * @param r
+     *
+     * @return parser which the caller must close
+     *
+     * @throws IOException
+     */
+    public static JsonParser createParser( Request r )
+            throws IOException
+    {
+        return createParser( r, r.getMaxBodySize() );
+    }
+
+    /**
+     * Stream the request body
+     *
+     * @param r
+     * @param maxSize largest body to accept in bytes
+     *
+     * @return parser which the caller must close
+     *
+     * @throws IOException
+     */
+    public static JsonParser createParser( Request r, long maxSize )
+            throws IOException
+    {
+        InputStream is = r.getBodyStream( maxSize );
+        Charset cs = getCharset( r );
+        return cs == null ? PARSERS.createParser( is ) : PARSERS.createParser( is, cs );
+    }
+
+    /**
+     * Read the request body, limited by {@link Request#getMaxBodySize()}
+     *
+     * @param r
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    public static JsonStructure read( Request r )
+            throws IOException
+    {
+        return read( r, r.getMaxBodySize() );
+    }
+
+    /**
+     * Read the request body
+     *
+     * @param r
+     * @param maxSize largest body to accept in bytes
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    public static JsonStructure read( Request r, long maxSize )
+            throws IOException
+    {
+        InputStream is = r.getBodyStream( maxSize );
+        Charset cs = getCharset( r );
+        try( JsonReader reader = cs == null ? READERS.createReader( is ) : READERS.createReader( is, cs ) ) {
+            return reader.read();
+        }
+    }
+
+    /**
+     * The charset in the request's Content-Type
+     *
+     * @return charset or null to detect it from the body
+     */
+    private static Charset getCharset( Request r )
+    {
+        HttpEntity entity = r.getRequestEntity();
+        ContentType ct = entity == null ? null : ContentType.get( entity );
+        return ct == null ? null : ct.getCharset();
+    }
+}